@@ -0,0 +1,93 @@
+/*
+ * Copyright © 2025-2026 Dezz (https://github.com/DezzK)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package dezz.gnssshare.client;
+
+import dezz.gnssshare.proto.LocationProto;
+
+/**
+ * Estimates the offset between the server's and this device's
+ * {@link android.os.SystemClock#elapsedRealtimeNanos()} from {@link LocationProto.TimeSync} replies.
+ * <p>
+ * Every exchange gives an offset that is off by at most half its round trip, and Wi-Fi delays come
+ * in bursts, so the estimate is taken from the fastest of the last {@link #SAMPLE_COUNT} exchanges
+ * rather than averaged. Thread-safe.
+ */
+public class ClockOffsetEstimator {
+    private static final int SAMPLE_COUNT = 8;
+
+    private final long[] offsets = new long[SAMPLE_COUNT];
+    private final long[] roundTrips = new long[SAMPLE_COUNT];
+    private int count = 0;
+    private int next = 0;
+    private int best = -1;
+
+    /**
+     * Adds an exchange.
+     *
+     * @param clientReceiveNanos this device's clock when the reply arrived
+     * @return false if the readings are inconsistent and the exchange was ignored
+     */
+    public synchronized boolean addSample(LocationProto.TimeSync timeSync, long clientReceiveNanos) {
+        long clientSend = timeSync.getClientSendNanos();
+        long serverReceive = timeSync.getServerReceiveNanos();
+        long serverSend = timeSync.getServerSendNanos();
+        long roundTrip = (clientReceiveNanos - clientSend) - (serverSend - serverReceive);
+        if (clientSend == 0 || serverReceive == 0 || serverSend < serverReceive || roundTrip < 0) {
+            return false;
+        }
+
+        offsets[next] = ((serverReceive - clientSend) + (serverSend - clientReceiveNanos)) / 2;
+        roundTrips[next] = roundTrip;
+        next = (next + 1) % SAMPLE_COUNT;
+        count = Math.min(count + 1, SAMPLE_COUNT);
+
+        best = 0;
+        for (int i = 1; i < count; i++) {
+            if (roundTrips[i] < roundTrips[best]) {
+                best = i;
+            }
+        }
+        return true;
+    }
+
+    public synchronized boolean hasEstimate() {
+        return best >= 0;
+    }
+
+    /** Server clock minus this device's clock, 0 without an estimate. */
+    public synchronized long getOffsetNanos() {
+        return best >= 0 ? offsets[best] : 0;
+    }
+
+    /** Round trip of the exchange the offset comes from, the offset is off by at most half of it. */
+    public synchronized long getRoundTripNanos() {
+        return best >= 0 ? roundTrips[best] : 0;
+    }
+
+    /** Translates a server clock reading into this device's clock. */
+    public synchronized long toLocalNanos(long serverNanos) {
+        return serverNanos - getOffsetNanos();
+    }
+
+    /** Forgets all exchanges, the next server may run on a different clock. */
+    public synchronized void reset() {
+        count = 0;
+        next = 0;
+        best = -1;
+    }
+}
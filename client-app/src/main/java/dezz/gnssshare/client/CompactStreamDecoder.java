@@ -0,0 +1,79 @@
+/*
+ * Copyright © 2025-2026 Dezz (https://github.com/DezzK)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package dezz.gnssshare.client;
+
+import dezz.gnssshare.proto.LocationProto;
+
+/**
+ * Rebuilds full server responses from the compact stream: keyframes are regular responses with a
+ * location, and {@link LocationProto.LocationDelta}s are applied to the latest keyframe.
+ */
+public class CompactStreamDecoder {
+    // Quantization steps, must match the server encoder
+    private static final double COORDINATE_SCALE = 1e7;
+    private static final double CENTI_SCALE = 100.0;
+    private static final double MILLI_SCALE = 1000.0;
+    private static final long NANOS_PER_MICRO = 1000;
+
+    private LocationProto.ServerResponse keyframe = null;
+
+    public void reset() {
+        keyframe = null;
+    }
+
+    /** Remembers a response with a location as the base for the deltas that follow it. */
+    public void setKeyframe(LocationProto.ServerResponse response) {
+        keyframe = response;
+    }
+
+    /**
+     * Returns the full response described by a delta frame, or null if the keyframe it refers
+     * to was never received.
+     */
+    public LocationProto.ServerResponse decode(LocationProto.ServerResponse response) {
+        LocationProto.LocationDelta delta = response.getLocationDelta();
+        if (keyframe == null || keyframe.getSequence() != response.getSequence() - delta.getKeyframeOffset()) {
+            return null;
+        }
+
+        LocationProto.LocationUpdate base = keyframe.getLocationUpdate();
+        LocationProto.LocationUpdate fix = LocationProto.LocationUpdate.newBuilder()
+                .setTimestamp(base.getTimestamp() + delta.getTimestamp())
+                .setLatitude(restore(base.getLatitude(), delta.getLatitude(), COORDINATE_SCALE))
+                .setLongitude(restore(base.getLongitude(), delta.getLongitude(), COORDINATE_SCALE))
+                .setAltitude(restore(base.getAltitude(), delta.getAltitude(), CENTI_SCALE))
+                .setAccuracy((float) restore(base.getAccuracy(), delta.getAccuracy(), CENTI_SCALE))
+                .setBearing((float) restore(base.getBearing(), delta.getBearing(), CENTI_SCALE))
+                .setSpeed((float) restore(base.getSpeed(), delta.getSpeed(), CENTI_SCALE))
+                .setLocationAge((float) restore(base.getLocationAge(), delta.getLocationAge(), MILLI_SCALE))
+                .setProvider(base.getProvider())
+                .setCached(base.getCached())
+                .setElapsedRealtimeNanos((base.getElapsedRealtimeNanos() / NANOS_PER_MICRO + delta.getElapsedRealtime()) * NANOS_PER_MICRO)
+                .build();
+
+        return keyframe.toBuilder()
+                .setSequence(response.getSequence())
+                .setSatellites(keyframe.getSatellites() + delta.getSatellites())
+                .setLocationUpdate(fix)
+                .build();
+    }
+
+    private static double restore(double base, int delta, double scale) {
+        return (Math.round(base * scale) + delta) / scale;
+    }
+}
@@ -20,25 +20,66 @@ package dezz.gnssshare.client;
 import android.content.Context;
 import android.net.DhcpInfo;
 import android.net.wifi.WifiManager;
-import android.os.Handler;
-import android.os.Looper;
+import android.os.SystemClock;
 import android.util.Log;
+import android.util.Patterns;
 
 import java.io.IOException;
+import java.net.InetAddress;
 import java.net.InetSocketAddress;
-import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.atomic.AtomicBoolean;
 
-public class ConnectionManager {
+import dezz.gnssshare.proto.LocationProto;
+import dezz.gnssshare.shared.LatencyHistogram;
+
+/**
+ * Connection to the server, run by a single non-blocking I/O thread.
+ * <p>
+ * The thread owns the connection state: it connects, reads frames, sends heartbeats and time sync
+ * pings, notices a stalled server and schedules reconnects, so the main thread is never involved
+ * and nothing wakes up between deadlines. Public methods may be called from any thread, they only
+ * hand work over to the loop. Listener methods are called on the loop thread.
+ * <p>
+ * Every connect races the gateway, the configured address and the last server that answered, and
+ * keeps whichever accepts first. When none does, the next round waits exponentially longer, with
+ * jitter, so a server that is gone for good doesn't keep the radio busy.
+ */
+public class ConnectionManager implements Runnable {
     private static final String TAG = "ConnectionManager";
     private static final int SERVER_PORT = 8887;
     private static final long RECONNECT_DELAY = 500;
+    private static final long MAX_RECONNECT_DELAY = 30000;
+    private static final long RECONNECT_STATS_WINDOW_MS = 60 * 60 * 1000;
+    private static final long CONNECT_TIMEOUT = 500;
+    private static final long SHUTDOWN_TIMEOUT = 1000;
     private static final long CONNECTION_CHECK_INTERVAL = 1000;
-    private static final long HEARTBEAT_INTERVAL = 1000; // Send heartbeat every second
+    private static final long HEARTBEAT_INTERVAL = 1000; // Heartbeat period for servers without liveness support
+    private static final long MIN_HEARTBEAT_IDLE_GAP = 200;
     private static final byte HEARTBEAT_PACKET = 0x01; // Simple heartbeat packet
+    private static final byte CLIENT_REQUEST_PACKET = 0x02; // Followed by length and ClientRequest
+    private static final byte BATCH_ACK_PACKET = 0x03; // Followed by the 8-byte batch id
+    private static final byte TIME_SYNC_PACKET = 0x04; // Followed by the 8-byte clock reading
+    // The first pings come quickly to get a good clock offset soon, later ones only track drift
+    private static final int TIME_SYNC_FAST_PINGS = 5;
+    private static final long TIME_SYNC_FAST_INTERVAL = 1000;
+    private static final long TIME_SYNC_INTERVAL = 10000;
+    // The connection is dropped when nothing arrived over TCP or UDP for this long
+    private static final int READ_TIMEOUT = 2500;
 
     public enum ConnectionState {
         DISCONNECTED,
@@ -49,230 +90,625 @@ public class ConnectionManager {
     public interface ConnectionListener {
         void onConnectionStateChanged(ConnectionState state, String message, String serverAddress);
 
-        void onConnectionEstablished(Socket socket, String serverAddress);
+        void onConnectionEstablished(InetAddress localAddress, String serverAddress);
+
+        /**
+         * Called for every frame received over TCP.
+         *
+         * @param readAt {@link SystemClock#elapsedRealtimeNanos()} when the frame finished arriving
+         */
+        void onResponseReceived(LocationProto.ServerResponse response, long readAt);
 
         void onDisconnected();
     }
 
     private final ConnectionListener listener;
     private final Context context;
-
-    private final ExecutorService executor = Executors.newCachedThreadPool();
-    private final Handler mainHandler = new Handler(Looper.getMainLooper());
-
-    private ConnectionState currentState = ConnectionState.DISCONNECTED;
-    private String gatewayIP = null;
-    private String serverAddress = null;
-    private Socket socket;
+    private final Selector selector;
+    private final Thread thread;
+    // Host names may need a blocking DNS lookup, which must not stall the loop; IP literals don't
+    private final ExecutorService resolver = Executors.newSingleThreadExecutor();
+
+    // Work handed over to the loop by other threads
+    private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    // Packets are written in the order they were queued
+    private final ConcurrentLinkedQueue<ByteBuffer> outbound = new ConcurrentLinkedQueue<>();
     private final AtomicBoolean shutdown = new AtomicBoolean(false);
     private final AtomicBoolean isNetworkAvailable = new AtomicBoolean(false);
-
-    private final Handler heartbeatHandler = new Handler(Looper.getMainLooper());
-    private final Runnable heartbeatRunnable;
-
-    private final Handler gatewayIpGetHandler = new Handler(Looper.getMainLooper());
-    private final Runnable gatewayIpGetRunnable;
+    private final AtomicBoolean timeSyncRequested = new AtomicBoolean(false);
+
+    // Written by the loop, read anywhere
+    private volatile ConnectionState currentState = ConnectionState.DISCONNECTED;
+    private volatile String serverAddress = null;
+
+    // Liveness tracking, all times are SystemClock.elapsedRealtime()
+    private volatile long lastFrameReceivedTime = 0;
+    private volatile long lastHeartbeatSentTime = 0;
+    private volatile int serverLivenessTimeout = 0;
+
+    // Owned by the loop thread; deadlines are SystemClock.elapsedRealtime(), 0 when not scheduled
+    private String lastGoodAddress;
+    // Connects in flight, each key's attachment is the address it goes to
+    private final List<SelectionKey> attempts = new ArrayList<>();
+    // Host names of the current round still being resolved; lookups of older rounds are skipped,
+    // so the resolver reads the round too
+    private volatile long roundId = 0;
+    private int resolving = 0;
+    private SocketChannel channel = null;
+    private SelectionKey key = null;
+    private FrameReader frameReader = null;
+    private ByteBuffer writing = null;
+    private boolean established = false;
+    private long heartbeatIdleGap = Preferences.DEFAULT_HEARTBEAT_IDLE_GAP_MS;
+    private long connectDeadline = 0;
+    private long reconnectTime = 0;
+    private long reconnectDelay = RECONNECT_DELAY;
+
+    // Time from losing the server to its first response on a new connection
+    private final LatencyHistogram reconnectLatency = new LatencyHistogram(RECONNECT_STATS_WINDOW_MS);
+    private long connectionLostTime = 0;
+    private int connectRounds = 0;
+    private long nextTimeSyncTime = 0;
+    private int timeSyncPings = 0;
 
     public ConnectionManager(Context context, ConnectionListener listener) {
         this.context = context;
         this.listener = listener;
+        this.lastGoodAddress = Preferences.lastServerAddress(context);
+        try {
+            this.selector = Selector.open();
+        } catch (IOException e) {
+            throw new IllegalStateException("Can't open selector", e);
+        }
+        this.thread = new Thread(this, "GNSSClientLoop");
+        this.thread.start();
+    }
 
-        this.heartbeatRunnable = new Runnable() {
-            @Override
-            public void run() {
-                if (currentState != ConnectionState.DISCONNECTED && socket != null) {
-                    sendHeartbeat();
-                    heartbeatHandler.postDelayed(this, HEARTBEAT_INTERVAL);
-                }
-            }
-        };
-
-        this.gatewayIpGetRunnable = new Runnable() {
-            @Override
-            public void run() {
-                if (currentState == ConnectionState.CONNECTING) {
-                    findGatewayIP();
-                    if (gatewayIP == null) {
-                        gatewayIpGetHandler.postDelayed(this, CONNECTION_CHECK_INTERVAL);
-                    } else {
-                        // Now we know server address, let's update it in UI
-                        setState(ConnectionState.CONNECTING, "Attempting to connect to server...", gatewayIP);
-                        serverAddress = gatewayIP;
-                        doConnect();
-                    }
-                }
-            }
-        };
+    /**
+     * Called for every frame received from the server, over TCP or UDP. Frames prove that the
+     * server is alive, and the liveness timeout they carry tells how rarely we may send heartbeats
+     * while frames keep flowing.
+     */
+    public void onFrameReceived(int livenessTimeoutMs) {
+        lastFrameReceivedTime = SystemClock.elapsedRealtime();
+        // Compact stream frames only carry it in keyframes
+        if (livenessTimeoutMs > 0) {
+            serverLivenessTimeout = livenessTimeoutMs;
+        }
+        // In datagram mode the first frame may come over UDP
+        if (currentState == ConnectionState.CONNECTING && Thread.currentThread() != thread) {
+            post(this::onFirstResponse);
+        }
     }
 
-    private void sendHeartbeat() {
-        executor.execute(() -> {
-            try {
-                // Send a simple heartbeat packet (1 byte)
-                socket.getOutputStream().write(HEARTBEAT_PACKET);
-                socket.getOutputStream().flush();
-                Log.v(TAG, "Heartbeat sent");
-            } catch (IOException e) {
-                Log.w(TAG, "Failed to send heartbeat", e);
-                mainHandler.post(this::handleConnectionLoss);
-            }
-        });
+    private long getNextHeartbeatTime() {
+        int livenessTimeout = serverLivenessTimeout;
+        if (livenessTimeout <= 0) {
+            // Old server drops clients that don't send a heartbeat every second
+            return lastHeartbeatSentTime + HEARTBEAT_INTERVAL;
+        }
+
+        // Probe the server only when the link has been idle, but always send a heartbeat often
+        // enough for the server to keep us
+        long idleProbeTime = Math.max(lastFrameReceivedTime, lastHeartbeatSentTime) + heartbeatIdleGap;
+        long keepAliveTime = lastHeartbeatSentTime + livenessTimeout / 3;
+        return Math.min(idleProbeTime, keepAliveTime);
+    }
+
+    /** Returns true if the server sent anything, over TCP or UDP, within the read timeout. */
+    public boolean isServerAlive() {
+        return SystemClock.elapsedRealtime() - lastFrameReceivedTime < READ_TIMEOUT;
+    }
+
+    public void sendClientRequest(LocationProto.ClientRequest request) {
+        byte[] message = request.toByteArray();
+        ByteBuffer packet = ByteBuffer.allocate(5 + message.length);
+        packet.put(CLIENT_REQUEST_PACKET).putInt(message.length).put(message).flip();
+        send(packet);
+        Log.d(TAG, "Client request queued: " + request);
+    }
+
+    public void sendBatchAck(long batchId) {
+        ByteBuffer packet = ByteBuffer.allocate(9);
+        packet.put(BATCH_ACK_PACKET).putLong(batchId).flip();
+        send(packet);
+        Log.v(TAG, "Batch " + batchId + " acknowledged");
+    }
+
+    /**
+     * Starts pinging the server for {@link LocationProto.TimeSync} replies until disconnected. Only
+     * for servers that know the ping, old ones would misread the clock reading as packets.
+     */
+    public void startTimeSync() {
+        if (timeSyncRequested.compareAndSet(false, true)) {
+            selector.wakeup();
+        }
     }
 
     public void onNetworkAvailable() {
         Log.d(TAG, "Network available");
         isNetworkAvailable.set(true);
-        gatewayIP = null;
-        if (!shutdown.get() && currentState == ConnectionState.DISCONNECTED) {
+        post(() -> {
+            // A new network may well have the server, don't wait out the backoff
+            reconnectDelay = RECONNECT_DELAY;
+            reconnectTime = 0;
             connect();
-        }
+        });
     }
 
     public void onNetworkLost() {
         Log.d(TAG, "Network lost");
-        gatewayIP = null;
         isNetworkAvailable.set(false);
-        if (!shutdown.get() && currentState != ConnectionState.DISCONNECTED) {
-            disconnect("WiFi disconnected");
-        }
+        post(() -> {
+            reconnectTime = 0;
+            if (currentState != ConnectionState.DISCONNECTED) {
+                closeConnection("WiFi disconnected");
+            }
+        });
     }
 
-    public void connect() {
-        if (shutdown.get()) {
-            return;
-        }
+    public ConnectionState getCurrentState() {
+        return currentState;
+    }
+
+    public boolean isConnected() {
+        return currentState == ConnectionState.CONNECTED;
+    }
+
+    public String getServerAddress() {
+        return serverAddress;
+    }
 
-        if (currentState == ConnectionState.CONNECTED) {
+    /** Disconnects and stops the loop, waiting a little for it to finish. */
+    public void shutdown() {
+        if (shutdown.getAndSet(true)) {
             return;
         }
-
-        boolean useGatewayIp = Preferences.useGatewayIp(context);
-        if (useGatewayIp) {
-            serverAddress = gatewayIP;
-        } else {
-            serverAddress = Preferences.serverAddress(context);
+        selector.wakeup();
+        try {
+            thread.join(SHUTDOWN_TIMEOUT);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
+    }
 
-        setState(ConnectionState.CONNECTING, "Attempting to connect to server...", serverAddress);
+    private void post(Runnable task) {
+        tasks.add(task);
+        selector.wakeup();
+    }
 
-        if (useGatewayIp && serverAddress == null) {
-            gatewayIpGetHandler.post(gatewayIpGetRunnable);
-        } else {
-            doConnect();
+    private void send(ByteBuffer packet) {
+        outbound.add(packet);
+        if (Thread.currentThread() != thread) {
+            selector.wakeup();
         }
     }
 
-    private void doConnect() {
-        executor.execute(() -> {
-            try {
-                Log.i(TAG, "Connecting to " + serverAddress + ":" + SERVER_PORT);
-                socket = new Socket();
-                socket.connect(new InetSocketAddress(serverAddress, SERVER_PORT), 500);
-                socket.setSoTimeout(2500);
-
-                if (shutdown.get()) {
-                    // Connection no longer wanted
-                    try {
-                        socket.close();
-                    } catch (IOException e) {
-                        Log.w(TAG, "Error closing unwanted socket", e);
-                    }
-                    return;
+    @Override
+    public void run() {
+        try {
+            while (!shutdown.get()) {
+                long deadline = getNextDeadline();
+                long timeout = deadline - SystemClock.elapsedRealtime();
+                if (deadline == 0) {
+                    selector.select();
+                } else if (timeout > 0) {
+                    selector.select(timeout);
+                } else {
+                    selector.selectNow();
                 }
-            } catch (IOException e) {
-                Log.w(TAG, "Connection failed: " + e.getMessage());
-                if (socket != null) {
-                    try {
-                        socket.close();
-                    } catch (IOException ex) {
-                        Log.w(TAG, "Error closing socket", ex);
-                    }
-                    socket = null;
+
+                Runnable task;
+                while ((task = tasks.poll()) != null) {
+                    task.run();
                 }
-                scheduleReconnect();
-                return;
+                processSelectedKeys();
+                processDeadlines(SystemClock.elapsedRealtime());
+                flush();
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "Error in connection loop", e);
+        } finally {
+            closeConnection("Shutting down");
+            resolver.shutdown();
+            try {
+                selector.close();
+            } catch (IOException e) {
+                Log.w(TAG, "Error closing selector", e);
             }
+        }
+    }
 
-            heartbeatHandler.post(heartbeatRunnable);
-            mainHandler.post(() -> listener.onConnectionEstablished(socket, serverAddress));
-        });
+    // Methods below are called on the loop thread only
+
+    /** Earliest time something has to be done without I/O, 0 if nothing is scheduled. */
+    private long getNextDeadline() {
+        long deadline = earliest(connectDeadline, reconnectTime);
+        if (established) {
+            deadline = earliest(deadline, getNextHeartbeatTime());
+            deadline = earliest(deadline, lastFrameReceivedTime + READ_TIMEOUT);
+            deadline = earliest(deadline, timeSyncRequested.get() && nextTimeSyncTime == 0
+                    ? SystemClock.elapsedRealtime() : nextTimeSyncTime);
+        }
+        return deadline;
     }
 
-    public void disconnect(String message) {
-        setState(ConnectionState.DISCONNECTED, message, null);
+    private static long earliest(long a, long b) {
+        if (a == 0) {
+            return b;
+        }
+        return b == 0 ? a : Math.min(a, b);
+    }
 
-        heartbeatHandler.removeCallbacks(heartbeatRunnable);
-        mainHandler.removeCallbacksAndMessages(null);
+    private void processSelectedKeys() {
+        Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+        while (iterator.hasNext()) {
+            SelectionKey selected = iterator.next();
+            iterator.remove();
+            if (!selected.isValid()) {
+                continue;
+            }
+            if (selected.isConnectable() && attempts.contains(selected)) {
+                finishConnect(selected);
+            } else if (selected == key && selected.isReadable()) {
+                readFrames();
+            }
+        }
+    }
 
-        if (socket != null) {
-            try {
-                socket.close();
-            } catch (IOException e) {
-                Log.w(TAG, "Error closing socket", e);
+    private void processDeadlines(long now) {
+        if (reconnectTime != 0 && now >= reconnectTime) {
+            reconnectTime = 0;
+            if (isNetworkAvailable.get()) {
+                connect();
             }
-            socket = null;
         }
 
-        listener.onDisconnected();
+        if (connectDeadline != 0 && now >= connectDeadline) {
+            Log.w(TAG, "Connection failed: timed out");
+            closeChannel();
+            scheduleReconnect();
+        }
+
+        if (!established) {
+            return;
+        }
+        if (now - lastFrameReceivedTime >= READ_TIMEOUT) {
+            Log.w(TAG, "Nothing received for " + (now - lastFrameReceivedTime) + "ms");
+            onConnectionLost();
+            return;
+        }
+        if (now >= getNextHeartbeatTime()) {
+            lastHeartbeatSentTime = now;
+            send(ByteBuffer.wrap(new byte[]{HEARTBEAT_PACKET}));
+            Log.v(TAG, "Heartbeat queued");
+        }
+        if (timeSyncRequested.get() && nextTimeSyncTime == 0) {
+            nextTimeSyncTime = now;
+        }
+        if (nextTimeSyncTime != 0 && now >= nextTimeSyncTime) {
+            sendTimePing(now);
+        }
     }
 
-    public ConnectionState getCurrentState() {
-        return currentState;
+    private void sendTimePing(long now) {
+        ByteBuffer packet = ByteBuffer.allocate(9);
+        // Written right away by flush(), so the clock reading is as late as it can be
+        packet.put(TIME_SYNC_PACKET).putLong(SystemClock.elapsedRealtimeNanos()).flip();
+        send(packet);
+        // Any packet keeps the connection alive
+        lastHeartbeatSentTime = now;
+        timeSyncPings++;
+        nextTimeSyncTime = now + (timeSyncPings < TIME_SYNC_FAST_PINGS ? TIME_SYNC_FAST_INTERVAL : TIME_SYNC_INTERVAL);
+        Log.v(TAG, "Time sync ping queued");
     }
 
-    public boolean isConnected() {
-        return currentState == ConnectionState.CONNECTED;
+    private void connect() {
+        if (shutdown.get() || channel != null || !attempts.isEmpty() || resolving > 0
+                || currentState == ConnectionState.CONNECTED) {
+            return;
+        }
+
+        Set<String> candidates = getCandidates();
+        // The preferred address is shown until one of them answers
+        String preferredAddress = candidates.isEmpty() ? null : candidates.iterator().next();
+        setState(ConnectionState.CONNECTING, "Attempting to connect to server...", preferredAddress);
+        serverAddress = preferredAddress;
+
+        if (candidates.isEmpty()) {
+            // Waiting for DHCP to tell the gateway, checking costs no traffic
+            reconnectTime = SystemClock.elapsedRealtime() + CONNECTION_CHECK_INTERVAL;
+            return;
+        }
+
+        connectRounds++;
+        long round = ++roundId;
+        for (String address : candidates) {
+            if (channel != null) {
+                // An earlier candidate accepted right away
+                break;
+            }
+            if (isIpLiteral(address)) {
+                openChannel(address, new InetSocketAddress(address, SERVER_PORT));
+                continue;
+            }
+            resolving++;
+            resolver.execute(() -> {
+                if (round != roundId) {
+                    return;
+                }
+                InetSocketAddress socketAddress = new InetSocketAddress(address, SERVER_PORT);
+                post(() -> onResolved(round, address, socketAddress));
+            });
+        }
+        if (channel == null && attempts.isEmpty() && resolving == 0) {
+            scheduleReconnect();
+        }
     }
 
-    public String getServerAddress() {
-        return serverAddress;
+    /** Whether the address is an IP literal, which is parsed without a DNS lookup. */
+    private static boolean isIpLiteral(String address) {
+        return Patterns.IP_ADDRESS.matcher(address).matches() || address.indexOf(':') >= 0;
     }
 
-    void setState(ConnectionState newState, String message, String serverAddress) {
-        if (currentState != newState || !Objects.equals(this.serverAddress, serverAddress)) {
-            Log.d(TAG, "State change: " + currentState + " -> " + newState + " (" + message + ")");
-            currentState = newState;
-            listener.onConnectionStateChanged(newState, message, serverAddress);
+    private void onResolved(long round, String address, InetSocketAddress socketAddress) {
+        if (round != roundId) {
+            return;
+        }
+        resolving--;
+        if (channel != null) {
+            // Another candidate already won
+            return;
+        }
+        if (socketAddress.isUnresolved()) {
+            Log.w(TAG, "Can't resolve " + address);
+        } else {
+            openChannel(address, socketAddress);
+        }
+        if (channel == null && attempts.isEmpty() && resolving == 0) {
+            scheduleReconnect();
         }
     }
 
-    private void findGatewayIP() {
-        gatewayIP = getGatewayIpAddress(context);
+    /** Addresses to race, the preferred one first. */
+    private Set<String> getCandidates() {
+        String gatewayIP = getGatewayIpAddress(context);
         if (gatewayIP == null) {
             Log.w(TAG, "Can't get gateway IP address");
         } else {
             Log.d(TAG, "Gateway IP: " + gatewayIP);
         }
+        String configuredAddress = Preferences.serverAddress(context);
+
+        Set<String> candidates = new LinkedHashSet<>();
+        if (Preferences.useGatewayIp(context)) {
+            addCandidate(candidates, gatewayIP);
+            addCandidate(candidates, configuredAddress);
+        } else {
+            addCandidate(candidates, configuredAddress);
+            addCandidate(candidates, gatewayIP);
+        }
+        addCandidate(candidates, lastGoodAddress);
+        return candidates;
+    }
+
+    private static void addCandidate(Set<String> candidates, String address) {
+        if (address != null && !address.isEmpty()) {
+            candidates.add(address);
+        }
     }
 
-    private void handleConnectionLoss() {
-        if (shutdown.get()) {
+    private void openChannel(String address, InetSocketAddress socketAddress) {
+        Log.i(TAG, "Connecting to " + address + ":" + SERVER_PORT);
+        SocketChannel candidate = null;
+        try {
+            candidate = SocketChannel.open();
+            candidate.configureBlocking(false);
+            // Packets are small and time sync pings must not wait for more data
+            candidate.socket().setTcpNoDelay(true);
+            if (candidate.connect(socketAddress)) {
+                onChannelConnected(candidate.register(selector, SelectionKey.OP_READ, address));
+            } else {
+                attempts.add(candidate.register(selector, SelectionKey.OP_CONNECT, address));
+                if (connectDeadline == 0) {
+                    connectDeadline = SystemClock.elapsedRealtime() + CONNECT_TIMEOUT;
+                }
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Connection to " + address + " failed: " + e);
+            if (candidate != null) {
+                close(candidate);
+            }
+        }
+    }
+
+    private void finishConnect(SelectionKey attempt) {
+        attempts.remove(attempt);
+        try {
+            ((SocketChannel) attempt.channel()).finishConnect();
+        } catch (IOException e) {
+            Log.w(TAG, "Connection to " + attempt.attachment() + " failed: " + e.getMessage());
+            attempt.cancel();
+            close(attempt.channel());
+            if (attempts.isEmpty() && resolving == 0) {
+                connectDeadline = 0;
+                scheduleReconnect();
+            }
             return;
         }
+        attempt.interestOps(SelectionKey.OP_READ);
+        onChannelConnected(attempt);
+    }
 
-        if (currentState == ConnectionState.CONNECTED) {
-            disconnect("Connection lost - attempting to reconnect...");
-            scheduleReconnect();
+    private void onChannelConnected(SelectionKey winner) {
+        // The first candidate to accept wins
+        closeAttempts();
+        key = winner;
+        channel = (SocketChannel) winner.channel();
+        String winnerAddress = (String) winner.attachment();
+        setState(ConnectionState.CONNECTING, "Connected to server, waiting for response...", winnerAddress);
+        serverAddress = winnerAddress;
+
+        connectDeadline = 0;
+        established = true;
+        frameReader = new FrameReader(channel);
+        // Anything queued belongs to the previous connection
+        outbound.clear();
+        writing = null;
+
+        lastFrameReceivedTime = SystemClock.elapsedRealtime();
+        lastHeartbeatSentTime = 0;
+        serverLivenessTimeout = 0;
+        timeSyncRequested.set(false);
+        nextTimeSyncTime = 0;
+        timeSyncPings = 0;
+        heartbeatIdleGap = Math.max(MIN_HEARTBEAT_IDLE_GAP, Preferences.heartbeatIdleGapMs(context));
+        listener.onConnectionEstablished(channel.socket().getLocalAddress(), serverAddress);
+    }
+
+    private void readFrames() {
+        try {
+            int read;
+            do {
+                read = frameReader.read();
+                if (read < 0) {
+                    Log.i(TAG, "Connection closed by server");
+                    onConnectionLost();
+                    return;
+                }
+                LocationProto.ServerResponse response;
+                while ((response = frameReader.nextResponse()) != null) {
+                    lastFrameReceivedTime = SystemClock.elapsedRealtime();
+                    onFirstResponse();
+                    listener.onResponseReceived(response, frameReader.getLastFrameReadAt());
+                }
+            } while (read > 0);
+        } catch (IOException e) {
+            Log.e(TAG, "Error receiving location update", e);
+            onConnectionLost();
         }
     }
 
-    public void scheduleReconnect() {
-        if (shutdown.get() || !this.isNetworkAvailable.get()) {
+    private void onFirstResponse() {
+        if (!established || currentState == ConnectionState.CONNECTED) {
             return;
         }
+        setState(ConnectionState.CONNECTED, "Received first server response", serverAddress);
+        reconnectDelay = RECONNECT_DELAY;
+
+        long now = SystemClock.elapsedRealtime();
+        if (connectionLostTime != 0) {
+            long timeToReconnect = now - connectionLostTime;
+            reconnectLatency.record(timeToReconnect * 1000000, now);
+            Log.i(TAG, "Reconnected to " + serverAddress + " in " + timeToReconnect + "ms, " + connectRounds
+                    + " connect rounds; time to reconnect: " + reconnectLatency.format(now));
+            connectionLostTime = 0;
+        }
+        connectRounds = 0;
 
-        mainHandler.postDelayed(() -> {
-            if (!shutdown.get() && this.isNetworkAvailable.get()) {
-                Log.i(TAG, "Scheduling reconnection attempt in " + RECONNECT_DELAY + "ms");
-                connect();
+        if (!serverAddress.equals(lastGoodAddress)) {
+            lastGoodAddress = serverAddress;
+            Preferences.setLastServerAddress(context, serverAddress);
+        }
+    }
+
+    private void flush() {
+        if (!established) {
+            return;
+        }
+        try {
+            while (writing != null || (writing = outbound.poll()) != null) {
+                channel.write(writing);
+                if (writing.hasRemaining()) {
+                    // Socket buffer is full, continue when the channel becomes writable
+                    key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                    return;
+                }
+                writing = null;
             }
-        }, RECONNECT_DELAY);
+            key.interestOps(SelectionKey.OP_READ);
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to send packet", e);
+            onConnectionLost();
+        }
     }
 
-    public void shutdown() {
-        shutdown.set(true);
-        disconnect("Shutting down");
-        executor.shutdown();
+    private void onConnectionLost() {
+        boolean hadResponse = currentState == ConnectionState.CONNECTED;
+        closeConnection("Connection lost - attempting to reconnect...");
+        // Losing a working server is mostly a short blip, so the first round goes right away. A
+        // server that drops us before answering would otherwise be hammered without a pause.
+        if (hadResponse && !shutdown.get() && isNetworkAvailable.get()) {
+            connect();
+        } else {
+            scheduleReconnect();
+        }
+    }
+
+    private void closeConnection(String message) {
+        if (established && connectionLostTime == 0) {
+            connectionLostTime = SystemClock.elapsedRealtime();
+        }
+        closeChannel();
+        setState(ConnectionState.DISCONNECTED, message, null);
+        listener.onDisconnected();
+    }
+
+    private void closeChannel() {
+        connectDeadline = 0;
+        established = false;
+        frameReader = null;
+        writing = null;
+        outbound.clear();
+        timeSyncRequested.set(false);
+        nextTimeSyncTime = 0;
+        // Connects of this round that are still being resolved are not wanted any more
+        roundId++;
+        resolving = 0;
+        closeAttempts();
+        if (channel == null) {
+            return;
+        }
+        key.cancel();
+        close(channel);
+        channel = null;
+        key = null;
+    }
+
+    private void closeAttempts() {
+        for (SelectionKey attempt : attempts) {
+            attempt.cancel();
+            close(attempt.channel());
+        }
+        attempts.clear();
+    }
+
+    private static void close(Channel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            Log.w(TAG, "Error closing socket", e);
+        }
+    }
+
+    private void scheduleReconnect() {
+        if (shutdown.get() || !isNetworkAvailable.get()) {
+            return;
+        }
+        // Half fixed, half random: the wait keeps growing, but clients that lost the same server
+        // don't all come back at the same moment
+        long delay = reconnectDelay / 2 + ThreadLocalRandom.current().nextLong(reconnectDelay / 2 + 1);
+        reconnectDelay = Math.min(MAX_RECONNECT_DELAY, reconnectDelay * 2);
+        reconnectTime = SystemClock.elapsedRealtime() + delay;
+        Log.i(TAG, "Reconnecting in " + delay + "ms");
+    }
+
+    private void setState(ConnectionState newState, String message, String serverAddress) {
+        if (currentState != newState || !Objects.equals(this.serverAddress, serverAddress)) {
+            Log.d(TAG, "State change: " + currentState + " -> " + newState + " (" + message + ")");
+            currentState = newState;
+            listener.onConnectionStateChanged(newState, message, serverAddress);
+        }
     }
 
     private static String getGatewayIpAddress(Context context) {
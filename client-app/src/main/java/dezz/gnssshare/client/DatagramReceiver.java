@@ -0,0 +1,132 @@
+/*
+ * Copyright © 2025-2026 Dezz (https://github.com/DezzK)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package dezz.gnssshare.client;
+
+import android.content.Context;
+import android.net.wifi.WifiManager;
+import android.util.Log;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.MulticastSocket;
+import java.net.NetworkInterface;
+
+/**
+ * Receives location datagrams sent by the server in UDP mode, either unicast to our own port or
+ * to the server's multicast group. Each datagram holds one ServerResponse without length prefix.
+ */
+public class DatagramReceiver {
+    private static final String TAG = "DatagramReceiver";
+    private static final String MULTICAST_GROUP = "239.255.88.87";
+    private static final int MULTICAST_PORT = 8888;
+    private static final int MULTICAST_COMPACT_PORT = 8889;
+    private static final int MAX_DATAGRAM_SIZE = 2048;
+
+    public interface Listener {
+        void onDatagramReceived(byte[] data, int length);
+    }
+
+    private final Context context;
+    private final Listener listener;
+
+    private DatagramSocket socket;
+    private WifiManager.MulticastLock multicastLock;
+    private Thread thread;
+
+    public DatagramReceiver(Context context, Listener listener) {
+        this.context = context;
+        this.listener = listener;
+    }
+
+    /**
+     * Opens the socket and starts receiving.
+     *
+     * @param multicast    join the server's multicast group instead of listening on a unicast port
+     * @param compact      receive the compact stream, which is multicast to its own port
+     * @param localAddress local address of the TCP connection to the server, selects the interface
+     * @return port to announce to the server, 0 for multicast
+     */
+    public synchronized int start(boolean multicast, boolean compact, InetAddress localAddress) throws IOException {
+        stop();
+
+        int port;
+        if (multicast) {
+            MulticastSocket multicastSocket = new MulticastSocket(compact ? MULTICAST_COMPACT_PORT : MULTICAST_PORT);
+            try {
+                multicastSocket.joinGroup(
+                        new InetSocketAddress(InetAddress.getByName(MULTICAST_GROUP), 0),
+                        NetworkInterface.getByInetAddress(localAddress));
+            } catch (IOException e) {
+                multicastSocket.close();
+                throw e;
+            }
+            socket = multicastSocket;
+            port = 0;
+
+            // Wi-Fi drivers filter multicast packets unless somebody holds this lock
+            WifiManager wifiManager = context.getSystemService(WifiManager.class);
+            if (wifiManager != null) {
+                multicastLock = wifiManager.createMulticastLock(TAG);
+                multicastLock.setReferenceCounted(false);
+                multicastLock.acquire();
+            }
+        } else {
+            socket = new DatagramSocket(0);
+            port = socket.getLocalPort();
+        }
+
+        // The thread keeps its own socket, a quick restart must not hand it the next one
+        DatagramSocket receiveSocket = socket;
+        thread = new Thread(() -> receive(receiveSocket), "GNSSDatagramReceiver");
+        thread.start();
+
+        Log.i(TAG, "Receiving location datagrams " + (multicast ? "from " + MULTICAST_GROUP : "on port " + port));
+        return port;
+    }
+
+    public synchronized void stop() {
+        if (socket != null) {
+            socket.close();
+            socket = null;
+        }
+        if (multicastLock != null) {
+            multicastLock.release();
+            multicastLock = null;
+        }
+        thread = null;
+    }
+
+    private void receive(DatagramSocket datagramSocket) {
+        byte[] buffer = new byte[MAX_DATAGRAM_SIZE];
+        DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+        while (!datagramSocket.isClosed()) {
+            try {
+                packet.setLength(buffer.length);
+                datagramSocket.receive(packet);
+                listener.onDatagramReceived(buffer, packet.getLength());
+            } catch (IOException e) {
+                if (!datagramSocket.isClosed()) {
+                    Log.w(TAG, "Error receiving datagram", e);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright © 2025-2026 Dezz (https://github.com/DezzK)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package dezz.gnssshare.client;
+
+import android.os.SystemClock;
+
+import com.google.protobuf.CodedInputStream;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+import dezz.gnssshare.proto.LocationProto;
+
+/**
+ * Reads length-prefixed {@link LocationProto.ServerResponse}s from the server's non-blocking TCP
+ * channel.
+ * <p>
+ * Bytes are read in bulk into a single buffer that is reused for every frame and only grows when
+ * a frame doesn't fit, and messages are parsed straight from it, so steady-state reading doesn't
+ * allocate anything besides the parsed message itself. Used on the connection's I/O thread only.
+ */
+public class FrameReader {
+    private static final int HEADER_SIZE = 4;
+    private static final int INITIAL_BUFFER_SIZE = 512;
+    // Far above any real response, protects against allocating gigabytes for a corrupt prefix
+    public static final int MAX_FRAME_SIZE = 64 * 1024;
+
+    private final ReadableByteChannel channel;
+
+    private byte[] buffer = new byte[INITIAL_BUFFER_SIZE];
+    // Wraps buffer, so reading doesn't allocate a new view every time
+    private ByteBuffer view = ByteBuffer.wrap(buffer);
+    private int position = 0;
+    private int limit = 0;
+    private long lastReadAt = 0;
+
+    public FrameReader(ReadableByteChannel channel) {
+        this.channel = channel;
+    }
+
+    /**
+     * Reads whatever the channel has without blocking. Complete frames are then taken with
+     * {@link #nextResponse()}.
+     *
+     * @return number of bytes read, -1 if the server closed the connection
+     */
+    public int read() throws IOException {
+        makeRoom();
+        view.limit(buffer.length).position(limit);
+        int read = channel.read(view);
+        if (read > 0) {
+            limit += read;
+            lastReadAt = SystemClock.elapsedRealtimeNanos();
+        }
+        return read;
+    }
+
+    /** Returns the next complete frame's message, or null until more bytes are read. */
+    public LocationProto.ServerResponse nextResponse() throws IOException {
+        int available = limit - position;
+        if (available < HEADER_SIZE) {
+            return null;
+        }
+        int length = frameLength();
+        if (available < HEADER_SIZE + length) {
+            return null;
+        }
+
+        CodedInputStream input = CodedInputStream.newInstance(buffer, position + HEADER_SIZE, length);
+        LocationProto.ServerResponse response = LocationProto.ServerResponse.parseFrom(input);
+        position += HEADER_SIZE + length;
+        if (position == limit) {
+            position = 0;
+            limit = 0;
+        }
+        return response;
+    }
+
+    /**
+     * {@link SystemClock#elapsedRealtimeNanos()} when the last bytes of the frame most recently
+     * returned by {@link #nextResponse()} were read.
+     */
+    public long getLastFrameReadAt() {
+        return lastReadAt;
+    }
+
+    private int frameLength() throws IOException {
+        int length = ((buffer[position] & 0xFF) << 24) |
+                ((buffer[position + 1] & 0xFF) << 16) |
+                ((buffer[position + 2] & 0xFF) << 8) |
+                (buffer[position + 3] & 0xFF);
+        if (length < 0 || length > MAX_FRAME_SIZE) {
+            throw new IOException("Invalid frame length: " + length);
+        }
+        return length;
+    }
+
+    /** Moves the unread tail to the start once the buffer is full, growing it if the frame doesn't fit. */
+    private void makeRoom() throws IOException {
+        if (limit < buffer.length) {
+            return;
+        }
+        int available = limit - position;
+        int needed = available >= HEADER_SIZE ? HEADER_SIZE + frameLength() : HEADER_SIZE;
+
+        byte[] target = buffer;
+        if (buffer.length < needed) {
+            target = new byte[Math.min(Math.max(needed, buffer.length * 2), HEADER_SIZE + MAX_FRAME_SIZE)];
+        }
+        System.arraycopy(buffer, position, target, 0, available);
+        if (target != buffer) {
+            buffer = target;
+            view = ByteBuffer.wrap(buffer);
+        }
+        position = 0;
+        limit = available;
+    }
+}
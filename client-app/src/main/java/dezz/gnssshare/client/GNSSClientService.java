@@ -32,6 +32,8 @@ import android.net.Network;
 import android.net.NetworkCapabilities;
 import android.net.NetworkRequest;
 import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.IBinder;
 import android.os.SystemClock;
 import android.util.Log;
@@ -39,16 +41,19 @@ import android.util.Log;
 import androidx.annotation.NonNull;
 import androidx.core.app.NotificationCompat;
 
+import com.google.protobuf.CodedInputStream;
+
 import java.io.IOException;
-import java.io.InputStream;
-import java.net.Socket;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.net.InetAddress;
+import java.util.Locale;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 import dezz.gnssshare.proto.LocationProto;
+import dezz.gnssshare.shared.LatencyHistogram;
+import dezz.gnssshare.shared.NotificationGovernor;
+import dezz.gnssshare.shared.RateMeter;
 
-public class GNSSClientService extends Service implements ConnectionManager.ConnectionListener {
+public class GNSSClientService extends Service implements ConnectionManager.ConnectionListener, DatagramReceiver.Listener {
     private static final String TAG = "GNSSClientService";
     private static final String CHANNEL_ID = "GNSSClientChannel";
     private static final int NOTIFICATION_ID = 1;
@@ -58,17 +63,66 @@ public class GNSSClientService extends Service implements ConnectionManager.Conn
     private ConnectionManager connectionManager;
     private MockLocationManager mockLocationManager;
     private NotificationManager notificationManager;
-    private final ExecutorService executor = Executors.newCachedThreadPool();
+    private NotificationGovernor notificationGovernor;
+    private NotificationCompat.Builder notificationBuilder;
+    private DatagramReceiver datagramReceiver;
     private final AtomicBoolean isReceivingUpdates = new AtomicBoolean(false);
 
-    private Socket currentSocket;
     private Location lastReceivedLocation;
+    private final Location receivedLocation = new Location(LocationManager.GPS_PROVIDER);
+    private final Location replayedLocation = new Location(LocationManager.GPS_PROVIDER);
     private static long lastUpdateTime;
     private long lastLocationTimestamp = 0;
+    // Newest fix handed to the mock provider, kept across reconnects so replays never go back in time
+    private volatile long lastMockTimestamp = 0;
+    private volatile long lastMockElapsedRealtimeNanos = 0;
+    // While the backfill is awaited and replayed, live fixes are held so they come after it;
+    // guarded by this
+    private boolean awaitingBackfill = false;
+    private boolean liveFixHeld = false;
+    // Replaying means hundreds of binder calls, which must not hold up the connection loop
+    private HandlerThread replayThread;
+    private Handler replayHandler;
+    private final Runnable backfillTimeout = this::releaseHeldFix;
     private int lastBroadcastSatelliteCount = -1;
+    // Sequence state survives reconnects to the same server session, guarded by this
+    private long sessionId = 0;
+    private long lastSequence = 0;
+    private long lastBatchId = 0;
+    // States the server sent that never arrived, and frames that arrived after newer ones
+    private long lostFrames = 0;
+    private long reorderedFrames = 0;
+    // Whatever the server sent while we were away doesn't count as lost
+    private boolean sequenceResumed = false;
+    // When the connection was established, 0 once a fresh fix arrived
+    private long connectedTime = 0;
+    private LocationProto.ThrottleLevel serverThrottleLevel = LocationProto.ThrottleLevel.THROTTLE_NONE;
+    private final CompactStreamDecoder compactDecoder = new CompactStreamDecoder();
+    private volatile LocationProto.ClientRequest clientRequest = null;
+    private long lastResyncRequestTime = 0;
+    // Fixes received from the server and fixes handed to the mock provider
+    private final RateMeter fixInputRate = new RateMeter(5);
+    private final RateMeter mockOutputRate = new RateMeter(5);
+    private long lastRateLogTime = 0;
+    // Latency per hop: frame read from the socket -> parsed -> fix handed to the mock provider
+    private static final long LATENCY_WINDOW_MS = 30000;
+    private final LatencyHistogram parseLatency = new LatencyHistogram(LATENCY_WINDOW_MS);
+    private final LatencyHistogram mockLatency = new LatencyHistogram(LATENCY_WINDOW_MS);
+    // When the response being handled was parsed, guarded by this
+    private long responseParsedAt = 0;
+    // Translates fix times from the server's clock into ours
+    private final ClockOffsetEstimator clockOffset = new ClockOffsetEstimator();
 
     private static final String WIDGET_SATELLITE_STATUS_ACTION = "dezz.gnssshare.action.SATELLITE_STATUS";
     private static final String WIDGET_PACKAGE = "dezz.status.widget";
+    private static final long RESYNC_REQUEST_INTERVAL_MS = 1000;
+    // Notification changes on every fix, but there's no point in redrawing it more often
+    private static final long NOTIFICATION_MIN_INTERVAL_MS = 1000;
+    private static final long RATE_LOG_INTERVAL_MS = 10000;
+    // History to ask the server for on connect, it keeps up to a minute
+    private static final int BACKFILL_SEC = 60;
+    // Old servers never answer the backfill request, live fixes aren't held longer than this
+    private static final long BACKFILL_WAIT_MS = 1000;
 
     public static boolean isServiceEnabled(Context context) {
         return Preferences.serviceEnabled(context);
@@ -105,16 +159,25 @@ public class GNSSClientService extends Service implements ConnectionManager.Conn
         notificationManager = getSystemService(NotificationManager.class);
         mockLocationManager = new MockLocationManager(this);
         connectionManager = new ConnectionManager(this, this);
+        datagramReceiver = new DatagramReceiver(this, this);
+        replayThread = new HandlerThread("GNSSBackfillReplay");
+        replayThread.start();
+        replayHandler = new Handler(replayThread.getLooper());
 
         registerWiFiStateReceiver();
         createNotificationChannel();
+        notificationGovernor = new NotificationGovernor(notificationManager, NOTIFICATION_ID,
+                NOTIFICATION_MIN_INTERVAL_MS, notificationRenderer);
 
+        CharSequence title = notificationRenderer.getTitle();
+        CharSequence text = notificationRenderer.getText();
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.UPSIDE_DOWN_CAKE) {
-            startForeground(NOTIFICATION_ID, createNotification(false),
+            startForeground(NOTIFICATION_ID, notificationRenderer.build(title, text),
                     ServiceInfo.FOREGROUND_SERVICE_TYPE_LOCATION);
         } else {
-            startForeground(NOTIFICATION_ID, createNotification(false));
+            startForeground(NOTIFICATION_ID, notificationRenderer.build(title, text));
         }
+        notificationGovernor.onPosted(title, text);
 
         instance = this;
     }
@@ -142,7 +205,11 @@ public class GNSSClientService extends Service implements ConnectionManager.Conn
         if (connectionManager != null) {
             connectionManager.shutdown();
         }
-        executor.shutdown();
+        // Also when no connection ever started the provider
+        mockLocationManager.shutdown();
+        datagramReceiver.stop();
+        notificationGovernor.cancel();
+        replayThread.quit();
     }
 
     public IBinder onBind(Intent intent) {
@@ -163,18 +230,41 @@ public class GNSSClientService extends Service implements ConnectionManager.Conn
     }
 
     @Override
-    public void onConnectionEstablished(Socket socket, String serverAddress) {
+    public void onConnectionEstablished(InetAddress localAddress, String serverAddress) {
         Log.i(TAG, "Connection established, starting location updates");
 
-        this.currentSocket = socket;
-        startReceivingLocationUpdates(serverAddress);
+        connectedTime = SystemClock.elapsedRealtime();
+        synchronized (this) {
+            sequenceResumed = true;
+        }
+        startReceivingLocationUpdates();
+        sendClientRequest(localAddress);
+    }
+
+    @Override
+    public void onResponseReceived(LocationProto.ServerResponse response, long readAt) {
+        long parsedAt = SystemClock.elapsedRealtimeNanos();
+        parseLatency.record(parsedAt - readAt);
+        handleServerResponse(response, parsedAt);
     }
 
     @Override
     public void onDisconnected() {
         Log.i(TAG, "Connection lost, stopping location updates");
 
-        this.currentSocket = null;
+        datagramReceiver.stop();
+        clientRequest = null;
+        synchronized (this) {
+            Log.i(TAG, "Frames lost: " + lostFrames + ", reordered: " + reorderedFrames);
+            // Old servers have no sessions, so their sequences can't be trusted after a reconnect
+            if (sessionId == 0) {
+                resetSequenceState();
+            }
+            // A held fix is stale by the next connection
+            awaitingBackfill = false;
+            liveFixHeld = false;
+        }
+        replayHandler.removeCallbacks(backfillTimeout);
         lastLocationTimestamp = 0;
         lastBroadcastSatelliteCount = -1;
         broadcastSatelliteStatusToWidget(0);
@@ -186,8 +276,8 @@ public class GNSSClientService extends Service implements ConnectionManager.Conn
                 .putExtra("state", ConnectionManager.ConnectionState.DISCONNECTED.toString()));
     }
 
-    private void startReceivingLocationUpdates(String serverAddress) {
-        if (isReceivingUpdates.get() || currentSocket == null) {
+    private void startReceivingLocationUpdates() {
+        if (isReceivingUpdates.get()) {
             return;
         }
 
@@ -207,70 +297,219 @@ public class GNSSClientService extends Service implements ConnectionManager.Conn
             Log.e(TAG, "Error setting up mock location provider", e);
             broadcastMockLocationStatus(String.format(getString(R.string.mock_location_setup_failed), e.getMessage()), true);
         }
+    }
+
+    private void sendClientRequest(InetAddress localAddress) {
+        int batchIntervalMs = Preferences.batchIntervalSec(this) * 1000;
+        // Batches only go over TCP
+        Preferences.Transport transport = batchIntervalMs > 0 ? Preferences.Transport.TCP : Preferences.transport(this);
+        boolean compact = Preferences.compactStream(this);
+        int updateIntervalMs = Preferences.updateIntervalMs(this);
+        boolean backfill = Preferences.backfillEnabled(this);
+        long resumeSessionId;
+        long resumeSequence;
+        synchronized (this) {
+            resumeSessionId = sessionId;
+            resumeSequence = lastSequence;
+            // Called before the first frame is read, so even the first live fix waits for the history
+            awaitingBackfill = backfill;
+            liveFixHeld = false;
+        }
+        if (backfill) {
+            replayHandler.removeCallbacks(backfillTimeout);
+            replayHandler.postDelayed(backfillTimeout, BACKFILL_WAIT_MS);
+        }
+        if (transport == Preferences.Transport.TCP && !compact && updateIntervalMs == 0 && batchIntervalMs == 0
+                && !backfill && resumeSessionId == 0) {
+            // Old servers don't know the request, so don't send it unless needed
+            return;
+        }
 
-        executor.execute(() -> {
+        boolean multicast = transport == Preferences.Transport.MULTICAST;
+        int port = 0;
+        if (transport != Preferences.Transport.TCP) {
             try {
-                InputStream inputStream = currentSocket.getInputStream();
-
-                while (isReceivingUpdates.get() && !currentSocket.isClosed()) {
-                    try {
-                        // Read message length (4 bytes)
-                        byte[] lengthBytes = new byte[4];
-                        int bytesRead = 0;
-                        while (bytesRead < 4) {
-                            int read = inputStream.read(lengthBytes, bytesRead, 4 - bytesRead);
-                            if (read == -1) {
-                                throw new IOException("Connection closed by server");
-                            }
-                            bytesRead += read;
-                        }
-
-                        int messageLength = bytesToInt(lengthBytes);
-
-                        // Read message data
-                        byte[] messageData = new byte[messageLength];
-                        bytesRead = 0;
-                        while (bytesRead < messageLength) {
-                            int read = inputStream.read(messageData, bytesRead, messageLength - bytesRead);
-                            if (read == -1) {
-                                throw new IOException("Connection closed by server");
-                            }
-                            bytesRead += read;
-                        }
-
-                        // Parse protobuf message
-                        LocationProto.ServerResponse response =
-                                LocationProto.ServerResponse.parseFrom(messageData);
-
-                        if (!connectionManager.isConnected()) {
-                            connectionManager.setState(ConnectionManager.ConnectionState.CONNECTED, "Received first server response", serverAddress);
-                        }
-
-                        if (response.hasLocationUpdate()) {
-                            handleLocationUpdate(response);
-                        } else {
-                            Log.i(TAG, "Server status: " + response.getStatus());
-                            // Broadcast satellite info to activity
-                            Intent intent = new Intent("dezz.gnssshare.LOCATION_UPDATE");
-                            intent.putExtra("satellites", response.getSatellites());
-                            sendBroadcast(intent);
-                        }
-                        broadcastSatelliteStatusToWidget(response.getSatellites());
-                    } catch (IOException e) {
-                        if (currentSocket != null && !currentSocket.isClosed() && !currentSocket.isInputShutdown() && !currentSocket.isOutputShutdown()) {
-                            Log.e(TAG, "Error receiving location update", e);
-                        }
-                        // Let ConnectionManager handle the reconnection
-                        break;
-                    }
-                }
+                port = datagramReceiver.start(multicast, compact, localAddress);
             } catch (IOException e) {
-                Log.e(TAG, "Error in location update receiver", e);
+                // Location updates keep coming over TCP
+                Log.e(TAG, "Can't start datagram receiver, staying on TCP", e);
+                multicast = false;
             }
+        }
+
+        LocationProto.ClientRequest request = LocationProto.ClientRequest.newBuilder()
+                .setUdpPort(port)
+                .setMulticast(multicast && port == 0)
+                .setCompact(compact)
+                .setUpdateIntervalMs(updateIntervalMs)
+                .setBatchIntervalMs(batchIntervalMs)
+                .build();
+        // Resync requests must not resume, the client lost the state it had, nor replay history again
+        clientRequest = request;
+        if (resumeSessionId != 0 || backfill) {
+            request = request.toBuilder()
+                    .setResumeSessionId(resumeSessionId)
+                    .setResumeSequence(resumeSequence)
+                    .setBackfillSec(backfill ? BACKFILL_SEC : 0)
+                    .build();
+        }
+        connectionManager.sendClientRequest(request);
+    }
+
+    /** Asks the server for its current keyframe after a compact frame couldn't be decoded. */
+    private void requestResync() {
+        LocationProto.ClientRequest request = clientRequest;
+        long now = SystemClock.elapsedRealtime();
+        if (request == null || now - lastResyncRequestTime < RESYNC_REQUEST_INTERVAL_MS) {
+            return;
+        }
+        lastResyncRequestTime = now;
+        Log.d(TAG, "Missed compact stream keyframe, requesting resync");
+        connectionManager.sendClientRequest(request);
+    }
+
+    // DatagramReceiver.Listener implementation
+    @Override
+    public void onDatagramReceived(byte[] data, int length) {
+        long receivedAt = SystemClock.elapsedRealtimeNanos();
+        LocationProto.ServerResponse response;
+        try {
+            response = LocationProto.ServerResponse.parseFrom(CodedInputStream.newInstance(data, 0, length));
+        } catch (IOException e) {
+            Log.w(TAG, "Malformed datagram received", e);
+            return;
+        }
+        long parsedAt = SystemClock.elapsedRealtimeNanos();
+        parseLatency.record(parsedAt - receivedAt);
 
-            connectionManager.disconnect("Connection lost - attempting to reconnect...");
-            connectionManager.scheduleReconnect();
-        });
+        if (connectionManager.getServerAddress() != null) {
+            handleServerResponse(response, parsedAt);
+        }
+    }
+
+    /**
+     * Handles a response received over either transport. Frames may arrive reordered when both
+     * are in use, so anything not newer than the last handled frame is dropped.
+     */
+    private synchronized void handleServerResponse(LocationProto.ServerResponse response, long parsedAt) {
+        responseParsedAt = parsedAt;
+
+        // Any frame proves the server is alive, even one we can't use
+        connectionManager.onFrameReceived(response.getLivenessTimeoutMs());
+
+        if (response.hasTimeSync()) {
+            handleTimeSync(response.getTimeSync(), parsedAt);
+            return;
+        }
+        if (response.hasLocationBackfill()) {
+            LocationProto.LocationUpdateBatch backfill = response.getLocationBackfill();
+            if (awaitingBackfill) {
+                replayHandler.removeCallbacks(backfillTimeout);
+                replayHandler.post(() -> replayBackfill(backfill));
+            } else {
+                // Live fixes already went to the mock provider, older ones would move it back
+                Log.w(TAG, "Dropping backfill that came after the wait expired");
+            }
+            return;
+        }
+
+        // Frames with the status carry the session, the others only make sense within it
+        if (!response.getStatus().isEmpty() && response.getSessionId() != sessionId) {
+            Log.i(TAG, "Server session " + Long.toHexString(response.getSessionId()) +
+                    (sessionId != 0 ? ", was " + Long.toHexString(sessionId) : ""));
+            sessionId = response.getSessionId();
+            resetSequenceState();
+        }
+
+        // Compact stream: nothing changed since the given frame
+        long unchangedSince = response.getUnchangedSince();
+        if (unchangedSince != 0) {
+            if (unchangedSince > lastSequence) {
+                requestResync();
+            }
+            return;
+        }
+
+        if (response.hasLocationBatch()) {
+            checkThrottleLevel(response);
+            handleLocationBatch(response);
+            return;
+        }
+
+        // Servers without sequence numbers always send 0
+        long sequence = response.getSequence();
+        LocationProto.ClientRequest request = clientRequest;
+        if (sequence != 0 && sequence <= lastSequence) {
+            // A keyframe resent on request may be older than the last frame, but deltas refer to it
+            if (response.hasLocationUpdate()) {
+                compactDecoder.setKeyframe(response);
+            }
+            // Heartbeat replies repeat the last frame, and resent keyframes aren't out of order
+            boolean resentKeyframe = response.hasLocationUpdate() && request != null && request.getCompact();
+            if (sequence < lastSequence && !resentKeyframe) {
+                reorderedFrames++;
+            }
+            Log.v(TAG, "Dropping stale frame " + sequence + ", last was " + lastSequence);
+            return;
+        }
+
+        if (response.hasLocationDelta()) {
+            LocationProto.ServerResponse decoded = compactDecoder.decode(response);
+            if (decoded == null) {
+                requestResync();
+                return;
+            }
+            response = decoded;
+        } else if (response.hasLocationUpdate()) {
+            compactDecoder.setKeyframe(response);
+        }
+        if (sequence != 0) {
+            // Only a client that gets every state can tell a lost one from a skipped one
+            boolean everyState = request == null || (request.getUpdateIntervalMs() == 0 && request.getBatchIntervalMs() == 0);
+            if (lastSequence != 0 && sequence > lastSequence + 1 && everyState && !sequenceResumed) {
+                lostFrames += sequence - lastSequence - 1;
+            }
+            sequenceResumed = false;
+            lastSequence = sequence;
+        }
+        checkThrottleLevel(response);
+
+        if (response.hasLocationUpdate()) {
+            handleLocationUpdate(response.getLocationUpdate(), response.getSatellites());
+        } else {
+            Log.i(TAG, "Server status: " + response.getStatus());
+            // Broadcast satellite info to activity
+            Intent intent = new Intent("dezz.gnssshare.LOCATION_UPDATE");
+            intent.putExtra("satellites", response.getSatellites());
+            sendBroadcast(intent);
+        }
+        broadcastSatelliteStatusToWidget(response.getSatellites());
+    }
+
+    private void resetSequenceState() {
+        lastSequence = 0;
+        lastBatchId = 0;
+        compactDecoder.reset();
+        // A new session may be a restarted server on a rebooted phone
+        clockOffset.reset();
+    }
+
+    private void handleTimeSync(LocationProto.TimeSync timeSync, long receivedAt) {
+        if (!clockOffset.addSample(timeSync, receivedAt)) {
+            Log.w(TAG, "Inconsistent time sync reply: " + timeSync);
+            return;
+        }
+        Log.d(TAG, String.format(Locale.US, "Server clock offset %.3f ms, round trip %.3f ms",
+                clockOffset.getOffsetNanos() / 1e6, clockOffset.getRoundTripNanos() / 1e6));
+    }
+
+    /** Logs when the server starts or stops slowing down, which explains a drop in the fix rate. */
+    private void checkThrottleLevel(LocationProto.ServerResponse response) {
+        LocationProto.ThrottleLevel level = response.getThrottleLevel();
+        if (level != serverThrottleLevel) {
+            Log.i(TAG, "Server throttle level: " + serverThrottleLevel + " -> " + level);
+            serverThrottleLevel = level;
+        }
     }
 
     private void stopReceivingLocationUpdates() {
@@ -284,51 +523,89 @@ public class GNSSClientService extends Service implements ConnectionManager.Conn
         }
     }
 
-    private int bytesToInt(byte[] bytes) {
-        return ((bytes[0] & 0xFF) << 24) |
-                ((bytes[1] & 0xFF) << 16) |
-                ((bytes[2] & 0xFF) << 8) |
-                (bytes[3] & 0xFF);
+    /**
+     * Acknowledges a batch and applies its newest fix. The mock provider only represents the current
+     * position, so replaying older fixes would just make navigation apps jump back.
+     */
+    private void handleLocationBatch(LocationProto.ServerResponse response) {
+        LocationProto.LocationUpdateBatch batch = response.getLocationBatch();
+        connectionManager.sendBatchAck(batch.getBatchId());
+        if (batch.getBatchId() <= lastBatchId) {
+            Log.v(TAG, "Dropping repeated batch " + batch.getBatchId());
+            return;
+        }
+        lastBatchId = batch.getBatchId();
+
+        int count = batch.getLocationsCount();
+        Log.i(TAG, "Received batch " + batch.getBatchId() + " with " + count + " fixes");
+        if (count > 0) {
+            handleLocationUpdate(batch.getLocations(count - 1), response.getSatellites());
+        }
+        broadcastSatelliteStatusToWidget(response.getSatellites());
     }
 
-    private void handleLocationUpdate(LocationProto.ServerResponse response) {
+    private void handleLocationUpdate(LocationProto.LocationUpdate locationUpdate, int satellites) {
         try {
-            LocationProto.LocationUpdate locationUpdate = response.getLocationUpdate();
-            // Create Android Location object
-            Location location = new Location(LocationManager.GPS_PROVIDER);
-            location.setLatitude(locationUpdate.getLatitude());
-            location.setLongitude(locationUpdate.getLongitude());
-            location.setTime(locationUpdate.getTimestamp());
-            location.setElapsedRealtimeNanos(SystemClock.elapsedRealtimeNanos());
-            location.setAltitude(locationUpdate.getAltitude());
-            location.setAccuracy(locationUpdate.getAccuracy());
-            location.setBearing(locationUpdate.getBearing());
-            location.setSpeed(locationUpdate.getSpeed());
+            // The same Location is refilled for every fix: the mock provider and broadcasts copy it
+            Location location = receivedLocation;
+            fillLocation(location, locationUpdate);
+            setElapsedRealtime(location, locationUpdate.getElapsedRealtimeNanos());
 
             Log.i(TAG, "Received location update: " + location);
+            long now = SystemClock.elapsedRealtime();
+            fixInputRate.mark(now);
+
+            // Time to first fix of this connection, a cached fix is usually there right away
+            long connected = connectedTime;
+            if (connected != 0) {
+                Log.i(TAG, (locationUpdate.getCached() ? "Cached" : "Fresh") + " fix " + (now - connected) +
+                        "ms after connecting");
+                if (!locationUpdate.getCached()) {
+                    connectedTime = 0;
+                }
+            }
 
             // Update internal state
             lastReceivedLocation = location;
             lastUpdateTime = System.currentTimeMillis();
 
+            // Mock provider first, it's what navigation apps are waiting for
+            // Only push to mock locations if GPS timestamp is new
+            // (avoids re-pushing stale location when server has no fresh GPS fix)
+            long gpsTimestamp = locationUpdate.getTimestamp();
+            if (gpsTimestamp != lastLocationTimestamp) {
+                lastLocationTimestamp = gpsTimestamp;
+                if (awaitingBackfill) {
+                    // Older fixes are on their way, this one goes to the mock provider after them
+                    liveFixHeld = true;
+                } else {
+                    setMockLocation(location);
+                    mockOutputRate.mark(now);
+                    // Includes waiting for the previous response and decoding compact frames
+                    mockLatency.record(SystemClock.elapsedRealtimeNanos() - responseParsedAt, now);
+                }
+            }
+
+            if (now - lastRateLogTime >= RATE_LOG_INTERVAL_MS) {
+                lastRateLogTime = now;
+                Log.i(TAG, String.format(Locale.US, "Fix rate: %.1f Hz in, %.1f Hz to mock provider",
+                        fixInputRate.getRate(now), mockOutputRate.getRate(now)));
+                Log.i(TAG, "Latency read -> parsed: " + parseLatency.format(now));
+                Log.i(TAG, "Latency parsed -> mock provider: " + mockLatency.format(now));
+                Log.i(TAG, "Frames lost: " + lostFrames + ", reordered: " + reorderedFrames);
+            }
+
             // Update notification with new location data
             updateNotification();
 
             // Broadcast location update to activity
             Intent intent = new Intent("dezz.gnssshare.LOCATION_UPDATE");
             intent.putExtra("location", location);
-            intent.putExtra("satellites", response.getSatellites());
+            intent.putExtra("satellites", satellites);
             intent.putExtra("provider", locationUpdate.getProvider());
             intent.putExtra("locationAge", locationUpdate.getLocationAge());
+            intent.putExtra("cached", locationUpdate.getCached());
             sendBroadcast(intent);
-
-            // Only push to mock locations if GPS timestamp is new
-            // (avoids re-pushing stale location when server has no fresh GPS fix)
-            long gpsTimestamp = locationUpdate.getTimestamp();
-            if (gpsTimestamp != lastLocationTimestamp) {
-                lastLocationTimestamp = gpsTimestamp;
-                mockLocationManager.setMockLocation(location);
-            }
         } catch (SecurityException e) {
             Log.e(TAG, "Security exception - mock location permission denied", e);
             broadcastMockLocationStatus(getString(R.string.mock_location_permission_denied), true);
@@ -338,6 +615,110 @@ public class GNSSClientService extends Service implements ConnectionManager.Conn
         }
     }
 
+    private static void fillLocation(Location location, LocationProto.LocationUpdate locationUpdate) {
+        location.reset();
+        location.setProvider(LocationManager.GPS_PROVIDER);
+        location.setLatitude(locationUpdate.getLatitude());
+        location.setLongitude(locationUpdate.getLongitude());
+        location.setTime(locationUpdate.getTimestamp());
+        location.setAltitude(locationUpdate.getAltitude());
+        location.setAccuracy(locationUpdate.getAccuracy());
+        location.setBearing(locationUpdate.getBearing());
+        location.setSpeed(locationUpdate.getSpeed());
+    }
+
+    private void setMockLocation(Location location) {
+        mockLocationManager.setMockLocation(location);
+        lastMockTimestamp = location.getTime();
+        lastMockElapsedRealtimeNanos = location.getElapsedRealtimeNanos();
+    }
+
+    /**
+     * Feeds the server's recent fixes to the mock provider, oldest first, so navigation apps start
+     * with a trajectory instead of a single point, then releases the live fix held meanwhile. Fixes
+     * the mock provider already got, e.g. before a reconnect, are skipped. Runs on the replay thread.
+     */
+    private void replayBackfill(LocationProto.LocationUpdateBatch backfill) {
+        int count = backfill.getLocationsCount();
+        long now = SystemClock.elapsedRealtimeNanos();
+        long newestNanos = count > 0 ? backfill.getLocations(count - 1).getElapsedRealtimeNanos() : 0;
+        int replayed = 0;
+        try {
+            for (LocationProto.LocationUpdate fix : backfill.getLocationsList()) {
+                if (fix.getTimestamp() <= lastMockTimestamp) {
+                    continue;
+                }
+                Location location = replayedLocation;
+                fillLocation(location, fix);
+                // Without a clock offset keep the spacing between the fixes, ending at the arrival time
+                long local = clockOffset.hasEstimate() ? clockOffset.toLocalNanos(fix.getElapsedRealtimeNanos())
+                        : now - (newestNanos - fix.getElapsedRealtimeNanos());
+                local = local > 0 ? Math.min(now, local) : now;
+                location.setElapsedRealtimeNanos(Math.max(lastMockElapsedRealtimeNanos, local));
+                setMockLocation(location);
+                replayed++;
+            }
+        } catch (SecurityException e) {
+            Log.e(TAG, "Security exception - mock location permission denied", e);
+            broadcastMockLocationStatus(getString(R.string.mock_location_permission_denied), true);
+        }
+        Log.i(TAG, "Replayed " + replayed + " of " + count + " recent fixes");
+        releaseHeldFix();
+    }
+
+    /** Ends the wait for the backfill, handing the live fix held meanwhile to the mock provider. */
+    private synchronized void releaseHeldFix() {
+        if (!awaitingBackfill) {
+            return;
+        }
+        awaitingBackfill = false;
+        if (!liveFixHeld) {
+            return;
+        }
+        liveFixHeld = false;
+        Location location = receivedLocation;
+        if (location.getTime() <= lastMockTimestamp) {
+            // The history reached past it
+            return;
+        }
+        // Backfill timed without a clock offset ends at its arrival, after the live fix was stamped
+        if (location.getElapsedRealtimeNanos() < lastMockElapsedRealtimeNanos) {
+            location.setElapsedRealtimeNanos(SystemClock.elapsedRealtimeNanos());
+        }
+        try {
+            setMockLocation(location);
+        } catch (SecurityException e) {
+            Log.e(TAG, "Security exception - mock location permission denied", e);
+            broadcastMockLocationStatus(getString(R.string.mock_location_permission_denied), true);
+        }
+    }
+
+    /**
+     * Sets when the fix was taken by our clock, so apps see its true age rather than the moment it
+     * arrived. Falls back to the arrival time until the server's clock offset is known.
+     */
+    private void setElapsedRealtime(Location location, long serverElapsedRealtimeNanos) {
+        long now = SystemClock.elapsedRealtimeNanos();
+        if (serverElapsedRealtimeNanos == 0) {
+            // Old server, no point in pinging it
+            location.setElapsedRealtimeNanos(now);
+            return;
+        }
+        connectionManager.startTimeSync();
+
+        long local = clockOffset.hasEstimate() ? clockOffset.toLocalNanos(serverElapsedRealtimeNanos) : 0;
+        if (local <= 0) {
+            // No estimate yet, or the fix is older than our boot
+            location.setElapsedRealtimeNanos(now);
+            return;
+        }
+        // Never in the future, which an offset error of up to half a round trip could cause
+        location.setElapsedRealtimeNanos(Math.min(now, local));
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+            location.setElapsedRealtimeUncertaintyNanos(clockOffset.getRoundTripNanos() / 2.0);
+        }
+    }
+
     private void broadcastMockLocationStatus(String message, boolean error) {
         Intent intent = new Intent("dezz.gnssshare.MOCK_LOCATION_STATUS");
         intent.putExtra("message", message);
@@ -375,34 +756,50 @@ public class GNSSClientService extends Service implements ConnectionManager.Conn
         notificationManager.createNotificationChannel(channel);
     }
 
-    private Notification createNotification(boolean isConnected) {
-        Intent intent = new Intent(this, MainActivity.class);
-        PendingIntent pendingIntent = PendingIntent.getActivity(
-                this, 0, intent, PendingIntent.FLAG_UPDATE_CURRENT | PendingIntent.FLAG_IMMUTABLE);
-
-        String title = isConnected ?
-                String.format(getString(R.string.notification_title_connected), getString(R.string.app_name)) :
-                String.format(getString(R.string.notification_title_disconnected), getString(R.string.app_name));
-
-        String text = isConnected ?
-                (lastReceivedLocation != null ?
-                        String.format(getString(R.string.notification_text_connected),
-                                (System.currentTimeMillis() - lastUpdateTime) / 1000.0) :
-                        getString(R.string.notification_text_connected_no_age)) :
-                getString(R.string.notification_text_disconnected);
-
-        return new NotificationCompat.Builder(this, CHANNEL_ID)
-                .setContentTitle(title)
-                .setContentText(text)
-                .setSmallIcon(android.R.drawable.ic_menu_mylocation)
-                .setContentIntent(pendingIntent)
-                .setOngoing(true)
-                .build();
-    }
+    private final NotificationGovernor.Renderer notificationRenderer = new NotificationGovernor.Renderer() {
+        @Override
+        public CharSequence getTitle() {
+            return isConnected() ?
+                    String.format(getString(R.string.notification_title_connected), getString(R.string.app_name)) :
+                    String.format(getString(R.string.notification_title_disconnected), getString(R.string.app_name));
+        }
 
-    private void updateNotification() {
-        boolean isConnected = connectionManager != null && connectionManager.isConnected();
+        @Override
+        public CharSequence getText() {
+            return isConnected() ?
+                    (lastReceivedLocation != null ?
+                            String.format(getString(R.string.notification_text_connected),
+                                    (System.currentTimeMillis() - lastUpdateTime) / 1000.0) :
+                            getString(R.string.notification_text_connected_no_age)) :
+                    getString(R.string.notification_text_disconnected);
+        }
 
-        notificationManager.notify(NOTIFICATION_ID, createNotification(isConnected));
+        @Override
+        public Notification build(CharSequence title, CharSequence text) {
+            // The content intent never changes, so the builder is created once
+            if (notificationBuilder == null) {
+                Intent intent = new Intent(GNSSClientService.this, MainActivity.class);
+                PendingIntent pendingIntent = PendingIntent.getActivity(
+                        GNSSClientService.this, 0, intent, PendingIntent.FLAG_UPDATE_CURRENT | PendingIntent.FLAG_IMMUTABLE);
+
+                notificationBuilder = new NotificationCompat.Builder(GNSSClientService.this, CHANNEL_ID)
+                        .setSmallIcon(android.R.drawable.ic_menu_mylocation)
+                        .setContentIntent(pendingIntent)
+                        .setOngoing(true);
+            }
+
+            return notificationBuilder
+                    .setContentTitle(title)
+                    .setContentText(text)
+                    .build();
+        }
+
+        private boolean isConnected() {
+            return connectionManager != null && connectionManager.isConnected();
+        }
+    };
+
+    private void updateNotification() {
+        notificationGovernor.markDirty();
     }
 }
@@ -236,6 +236,98 @@ public class MainActivity extends AppCompatActivity {
         staticJitterCheckbox.setOnCheckedChangeListener((buttonView, isChecked) ->
                 Preferences.setStaticJitterEnabled(this, isChecked));
 
+        // Heartbeat idle gap, applied on the next connection
+        EditText heartbeatIdleGapEdit = findViewById(R.id.heartbeatIdleGapEdit);
+        heartbeatIdleGapEdit.setText(String.valueOf(Preferences.heartbeatIdleGapMs(this)));
+        heartbeatIdleGapEdit.addTextChangedListener(new TextWatcher() {
+            @Override
+            public void afterTextChanged(Editable s) {
+                try {
+                    Preferences.setHeartbeatIdleGapMs(MainActivity.this, Integer.parseInt(s.toString()));
+                } catch (NumberFormatException e) {
+                    Preferences.setHeartbeatIdleGapMs(MainActivity.this, Preferences.DEFAULT_HEARTBEAT_IDLE_GAP_MS);
+                }
+            }
+
+            @Override
+            public void beforeTextChanged(CharSequence s, int start, int count, int after) {
+            }
+
+            @Override
+            public void onTextChanged(CharSequence s, int start, int before, int count) {
+            }
+        });
+
+        // Requested update interval, applied on the next connection
+        EditText updateIntervalEdit = findViewById(R.id.updateIntervalEdit);
+        int updateIntervalMs = Preferences.updateIntervalMs(this);
+        updateIntervalEdit.setText(updateIntervalMs > 0 ? String.valueOf(updateIntervalMs) : "");
+        updateIntervalEdit.addTextChangedListener(new TextWatcher() {
+            @Override
+            public void afterTextChanged(Editable s) {
+                try {
+                    Preferences.setUpdateIntervalMs(MainActivity.this, Integer.parseInt(s.toString()));
+                } catch (NumberFormatException e) {
+                    Preferences.setUpdateIntervalMs(MainActivity.this, 0);
+                }
+            }
+
+            @Override
+            public void beforeTextChanged(CharSequence s, int start, int count, int after) {
+            }
+
+            @Override
+            public void onTextChanged(CharSequence s, int start, int before, int count) {
+            }
+        });
+
+        // Batched delivery interval, applied on the next connection
+        EditText batchIntervalEdit = findViewById(R.id.batchIntervalEdit);
+        int batchIntervalSec = Preferences.batchIntervalSec(this);
+        batchIntervalEdit.setText(batchIntervalSec > 0 ? String.valueOf(batchIntervalSec) : "");
+        batchIntervalEdit.addTextChangedListener(new TextWatcher() {
+            @Override
+            public void afterTextChanged(Editable s) {
+                try {
+                    Preferences.setBatchIntervalSec(MainActivity.this, Integer.parseInt(s.toString()));
+                } catch (NumberFormatException e) {
+                    Preferences.setBatchIntervalSec(MainActivity.this, 0);
+                }
+            }
+
+            @Override
+            public void beforeTextChanged(CharSequence s, int start, int count, int after) {
+            }
+
+            @Override
+            public void onTextChanged(CharSequence s, int start, int before, int count) {
+            }
+        });
+
+        // Location updates transport, applied on the next connection
+        Preferences.Transport transport = Preferences.transport(this);
+        RadioButton transportTcpRadio = findViewById(R.id.transportTcpRadioButton);
+        RadioButton transportUdpRadio = findViewById(R.id.transportUdpRadioButton);
+        RadioButton transportMulticastRadio = findViewById(R.id.transportMulticastRadioButton);
+        transportTcpRadio.setChecked(transport == Preferences.Transport.TCP);
+        transportUdpRadio.setChecked(transport == Preferences.Transport.UDP);
+        transportMulticastRadio.setChecked(transport == Preferences.Transport.MULTICAST);
+        transportTcpRadio.setOnClickListener(v -> Preferences.setTransport(this, Preferences.Transport.TCP));
+        transportUdpRadio.setOnClickListener(v -> Preferences.setTransport(this, Preferences.Transport.UDP));
+        transportMulticastRadio.setOnClickListener(v -> Preferences.setTransport(this, Preferences.Transport.MULTICAST));
+
+        // Compact location stream, applied on the next connection
+        CheckBox compactStreamCheckbox = findViewById(R.id.compactStreamCheckbox);
+        compactStreamCheckbox.setChecked(Preferences.compactStream(this));
+        compactStreamCheckbox.setOnCheckedChangeListener((buttonView, isChecked) ->
+                Preferences.setCompactStream(this, isChecked));
+
+        // Recent track replay, applied on the next connection
+        CheckBox backfillCheckbox = findViewById(R.id.backfillCheckbox);
+        backfillCheckbox.setChecked(Preferences.backfillEnabled(this));
+        backfillCheckbox.setOnCheckedChangeListener((buttonView, isChecked) ->
+                Preferences.setBackfillEnabled(this, isChecked));
+
         // Set up server IP edit text change listener
         serverIpEdit.addTextChangedListener(new TextWatcher() {
             @Override
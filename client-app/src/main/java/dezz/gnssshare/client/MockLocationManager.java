@@ -21,6 +21,7 @@ import androidx.annotation.NonNull;
 
 import android.content.ContentResolver;
 import android.content.Context;
+import android.content.SharedPreferences;
 import android.location.Location;
 import android.location.LocationManager;
 import android.location.provider.ProviderProperties;
@@ -41,15 +42,28 @@ public class MockLocationManager {
     private final Context context;
     private final Handler mainHandler = new Handler(Looper.getMainLooper());
     private final Random random = new Random();
+    // Jitter goes into this copy, the caller's fix stays as received for the UI and its other users
+    private final Location jitteredLocation = new Location(LocationManager.GPS_PROVIDER);
 
     // We need to use such runnable to make scheduled disabling cancelable
     private final Runnable disableMockLocationProvider = this::disableMockLocationProvider;
 
     private boolean isMockLocationProviderSetup = false;
 
+    // Looking the preference up costs a context and a map lookup, too much for every fix at 10 Hz
+    private volatile boolean staticJitterEnabled;
+    private final SharedPreferences.OnSharedPreferenceChangeListener preferenceListener;
+
     public MockLocationManager(Context context) {
         this.context = context.getApplicationContext();
         locationManager = context.getSystemService(LocationManager.class);
+        staticJitterEnabled = Preferences.staticJitterEnabled(this.context);
+        preferenceListener = (prefs, key) -> {
+            if (Preferences.isStaticJitterKey(key)) {
+                staticJitterEnabled = Preferences.staticJitterEnabled(this.context);
+            }
+        };
+        Preferences.registerListener(this.context, preferenceListener);
     }
 
     public void startMockLocationProvider() {
@@ -67,9 +81,11 @@ public class MockLocationManager {
         mainHandler.postDelayed(this.disableMockLocationProvider, delayMillis);
     }
 
-    public void setMockLocation(@NonNull Location location) {
-        if (Preferences.staticJitterEnabled(context) && isStatic(location)) {
-            applyJitter(location);
+    public synchronized void setMockLocation(@NonNull Location location) {
+        if (staticJitterEnabled && isStatic(location)) {
+            jitteredLocation.set(location);
+            applyJitter(jitteredLocation);
+            location = jitteredLocation;
         }
         locationManager.setTestProviderLocation(LocationManager.GPS_PROVIDER, location);
     }
@@ -103,6 +119,7 @@ public class MockLocationManager {
     public synchronized void shutdown() {
         Log.d(TAG, "Shutdown");
 
+        Preferences.unregisterListener(context, preferenceListener);
         if (!isMockLocationProviderSetup) {
             return;
         }
@@ -25,6 +25,22 @@ public class Preferences {
     private static final String PREF_USE_GATEWAY_IP = "useGatewayIp";
     private static final String PREF_SERVER_ADDRESS = "serverAddress";
     private static final String PREF_STATIC_JITTER_ENABLED = "staticJitterEnabled";
+    private static final String PREF_HEARTBEAT_IDLE_GAP_MS = "heartbeatIdleGapMs";
+    private static final String PREF_TRANSPORT = "transport";
+    private static final String PREF_COMPACT_STREAM = "compactStream";
+    private static final String PREF_UPDATE_INTERVAL_MS = "updateIntervalMs";
+    private static final String PREF_BATCH_INTERVAL_SEC = "batchIntervalSec";
+    private static final String PREF_BACKFILL_ENABLED = "backfillEnabled";
+    private static final String PREF_LAST_SERVER_ADDRESS = "lastServerAddress";
+
+    public static final int DEFAULT_HEARTBEAT_IDLE_GAP_MS = 1000;
+
+    /** How location frames are delivered; registration and heartbeats always use TCP. */
+    public enum Transport {
+        TCP,
+        UDP,
+        MULTICAST,
+    }
 
     // SharedPreferences helper methods
     public static void setServiceEnabled(Context context, boolean enabled) {
@@ -59,6 +75,83 @@ public class Preferences {
         return getPrefs(context).getBoolean(PREF_STATIC_JITTER_ENABLED, false);
     }
 
+    public static void setHeartbeatIdleGapMs(Context context, int value) {
+        getPrefs(context).edit().putInt(PREF_HEARTBEAT_IDLE_GAP_MS, value).apply();
+    }
+
+    public static int heartbeatIdleGapMs(Context context) {
+        return getPrefs(context).getInt(PREF_HEARTBEAT_IDLE_GAP_MS, DEFAULT_HEARTBEAT_IDLE_GAP_MS);
+    }
+
+    public static void setTransport(Context context, Transport value) {
+        getPrefs(context).edit().putString(PREF_TRANSPORT, value.name()).apply();
+    }
+
+    public static Transport transport(Context context) {
+        try {
+            return Transport.valueOf(getPrefs(context).getString(PREF_TRANSPORT, Transport.TCP.name()));
+        } catch (IllegalArgumentException e) {
+            return Transport.TCP;
+        }
+    }
+
+    public static void setCompactStream(Context context, boolean value) {
+        getPrefs(context).edit().putBoolean(PREF_COMPACT_STREAM, value).apply();
+    }
+
+    public static boolean compactStream(Context context) {
+        return getPrefs(context).getBoolean(PREF_COMPACT_STREAM, false);
+    }
+
+    public static void setUpdateIntervalMs(Context context, int value) {
+        getPrefs(context).edit().putInt(PREF_UPDATE_INTERVAL_MS, value).apply();
+    }
+
+    /** Time between fixes to ask the server for, 0 for the server default. */
+    public static int updateIntervalMs(Context context) {
+        return getPrefs(context).getInt(PREF_UPDATE_INTERVAL_MS, 0);
+    }
+
+    public static void setBatchIntervalSec(Context context, int value) {
+        getPrefs(context).edit().putInt(PREF_BATCH_INTERVAL_SEC, value).apply();
+    }
+
+    /** How often to receive fixes in batches, 0 for real-time delivery. */
+    public static int batchIntervalSec(Context context) {
+        return getPrefs(context).getInt(PREF_BATCH_INTERVAL_SEC, 0);
+    }
+
+    public static void setBackfillEnabled(Context context, boolean value) {
+        getPrefs(context).edit().putBoolean(PREF_BACKFILL_ENABLED, value).apply();
+    }
+
+    /** Whether to ask the server for its recent fixes on connect and replay them. */
+    public static boolean backfillEnabled(Context context) {
+        return getPrefs(context).getBoolean(PREF_BACKFILL_ENABLED, false);
+    }
+
+    public static void setLastServerAddress(Context context, String value) {
+        getPrefs(context).edit().putString(PREF_LAST_SERVER_ADDRESS, value).apply();
+    }
+
+    /** Address of the last server that answered, tried on every connect besides the configured ones. */
+    public static String lastServerAddress(Context context) {
+        return getPrefs(context).getString(PREF_LAST_SERVER_ADDRESS, null);
+    }
+
+    /** The listener is held weakly, the caller has to keep a reference to it. */
+    public static void registerListener(Context context, SharedPreferences.OnSharedPreferenceChangeListener listener) {
+        getPrefs(context).registerOnSharedPreferenceChangeListener(listener);
+    }
+
+    public static void unregisterListener(Context context, SharedPreferences.OnSharedPreferenceChangeListener listener) {
+        getPrefs(context).unregisterOnSharedPreferenceChangeListener(listener);
+    }
+
+    public static boolean isStaticJitterKey(String key) {
+        return PREF_STATIC_JITTER_ENABLED.equals(key);
+    }
+
     private static SharedPreferences getPrefs(Context context) {
         final Context deviceContext = context.getApplicationContext().createDeviceProtectedStorageContext();
         return deviceContext.getSharedPreferences(context.getPackageName() + "_preferences", Context.MODE_PRIVATE);
@@ -105,11 +105,13 @@ public class BluetoothReceiver extends BroadcastReceiver {
         if (GNSSServerService.isServiceRunning()) {
             // Cancel any pending auto-stop (don't mark as BT-managed — service may have been started manually)
             GNSSServerService.cancelBluetoothAutoStopRequest();
+            GNSSServerService.requestPrewarm();
         } else {
-            // Start the service
+            // Start the service, GNSS warms up while the head unit boots if enabled
             Log.i(TAG, "Starting GNSS service due to Bluetooth connection");
             GNSSServerService.setServiceEnabled(context, true);
             Intent serviceIntent = new Intent(context, GNSSServerService.class);
+            serviceIntent.putExtra(GNSSServerService.EXTRA_PREWARM, true);
             ContextCompat.startForegroundService(context, serviceIntent);
         }
     }
@@ -0,0 +1,367 @@
+/*
+ * Copyright © 2025-2026 Dezz (https://github.com/DezzK)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package dezz.gnssshare.server;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Iterator;
+
+import dezz.gnssshare.proto.LocationProto;
+import dezz.gnssshare.shared.LatencyHistogram;
+
+/**
+ * A single client connected to {@link ServerEventLoop}.
+ * <p>
+ * {@link #sendResponse} may be called from any thread: it only queues the frame and asks the loop to
+ * flush it. All socket I/O happens on the loop thread, so frames are written strictly in order.
+ * <p>
+ * The queue is bounded. A state frame that hasn't started going out yet is replaced by a newer one,
+ * so a client on a weak link always gets the freshest state instead of a stale backlog.
+ */
+public class ClientConnection {
+    private static final String TAG = "ClientConnection";
+    private static final int MAX_FRAMES_PER_WRITE = 8;
+    private static final int MAX_QUEUED_FRAMES = 16;
+    static final int MAX_CLIENT_REQUEST_SIZE = 1024;
+    // Bounds for requested update intervals, 100 ms is as fast as GNSS chips report
+    static final int MIN_UPDATE_INTERVAL_MS = 100;
+    static final int MAX_UPDATE_INTERVAL_MS = 60000;
+    static final int MIN_BATCH_INTERVAL_MS = 1000;
+    static final int MAX_BATCH_INTERVAL_MS = 600000;
+    // Batches the client hasn't confirmed yet, older ones are forgotten
+    private static final int MAX_UNACKED_BATCHES = 16;
+
+    private final ServerEventLoop loop;
+    private final SocketChannel channel;
+    private final SelectionKey key;
+    private final String clientAddress;
+    // Time from encoding a frame to writing its last byte, shared by all clients
+    private final LatencyHistogram writeLatency;
+
+    private final ArrayDeque<QueuedFrame> outbound = new ArrayDeque<>();
+    private final ByteBuffer[] writeBatch = new ByteBuffer[MAX_FRAMES_PER_WRITE];
+    // Replaceable frame currently in the queue, if any
+    private QueuedFrame queuedStateFrame = null;
+    private int droppedFrames = 0;
+    private boolean flushScheduled = false;
+    private volatile boolean closed = false;
+
+    private volatile long lastPacketTime;
+    private volatile InetSocketAddress datagramTarget = null;
+    private volatile NetworkInterface multicastInterface = null;
+    private volatile boolean compactStream = false;
+    private volatile int updateIntervalMs = 0;
+    private volatile int fieldMask = LocationProto.LocationField.ALL_FIELDS_VALUE;
+    private volatile LocationProto.LocationPriority priority = LocationProto.LocationPriority.PRIORITY_DEFAULT;
+    private volatile int batchIntervalMs = 0;
+    private final ArrayDeque<Long> unackedBatches = new ArrayDeque<>();
+    // Owned by the thread that broadcasts fixes
+    private long lastFixSentTime = 0;
+
+    // Owned by the server loop: liveness deadline and partially received client packets
+    final TimingWheel.Entry<ClientConnection> heartbeatTimeout = new TimingWheel.Entry<>(this);
+    final ByteBuffer inbound = ByteBuffer.allocate(5 + MAX_CLIENT_REQUEST_SIZE);
+    private volatile long lastResponseTime = 0;
+
+    private static final class QueuedFrame {
+        final ByteBuffer buffer;
+        final long encodedAt;
+
+        QueuedFrame(ResponseFrame frame) {
+            this.buffer = frame.newBuffer();
+            this.encodedAt = frame.getEncodedAt();
+        }
+    }
+
+    ClientConnection(ServerEventLoop loop, SocketChannel channel, SelectionKey key, LatencyHistogram writeLatency) {
+        this.loop = loop;
+        this.channel = channel;
+        this.key = key;
+        this.writeLatency = writeLatency;
+        this.clientAddress = String.valueOf(channel.socket().getRemoteSocketAddress());
+        this.lastPacketTime = SystemClock.elapsedRealtime();
+    }
+
+    public String getClientAddress() {
+        return clientAddress;
+    }
+
+    /** Monotonic time ({@link SystemClock#elapsedRealtime()}) of the last packet received. */
+    public long getLastPacketTime() {
+        return lastPacketTime;
+    }
+
+    /** Monotonic time ({@link SystemClock#elapsedRealtime()}) of the last response fully written. */
+    public long getLastResponseTime() {
+        return lastResponseTime;
+    }
+
+    /** Address to send location datagrams to, or null if the client receives them over TCP. */
+    public InetSocketAddress getDatagramTarget() {
+        return datagramTarget;
+    }
+
+    /** Interface to multicast location datagrams on, or null if the client doesn't use multicast. */
+    public NetworkInterface getMulticastInterface() {
+        return multicastInterface;
+    }
+
+    /** Whether the client receives the compact stream instead of full frames. */
+    public boolean isCompactStream() {
+        return compactStream;
+    }
+
+    /** Requested time between fixes, 0 if the client didn't ask for a rate. */
+    public int getUpdateIntervalMs() {
+        return updateIntervalMs;
+    }
+
+    /** Requested {@link LocationProto.LocationField} values, 0 for all fields. */
+    public int getFieldMask() {
+        return fieldMask;
+    }
+
+    public LocationProto.LocationPriority getPriority() {
+        return priority;
+    }
+
+    /** How often the client wants its batch of fixes, 0 if it gets them in real time. */
+    public int getBatchIntervalMs() {
+        return batchIntervalMs;
+    }
+
+    /** Sends a batch frame over TCP and remembers it until the client acknowledges it. */
+    public void sendBatch(long batchId, ResponseFrame frame) {
+        synchronized (unackedBatches) {
+            if (unackedBatches.size() >= MAX_UNACKED_BATCHES) {
+                unackedBatches.poll();
+            }
+            unackedBatches.add(batchId);
+        }
+        sendResponse(frame);
+    }
+
+    /** Number of batches sent but not acknowledged yet. */
+    public int getUnackedBatches() {
+        synchronized (unackedBatches) {
+            return unackedBatches.size();
+        }
+    }
+
+    /**
+     * Returns whether a new fix should go to this client and remembers it as sent if so. Fixes are
+     * due a bit early, otherwise jitter in fix times would halve the rate when the client asked
+     * for the GNSS interval itself.
+     */
+    public boolean takeFixIfDue(long now) {
+        int interval = updateIntervalMs;
+        if (interval > 0 && lastFixSentTime != 0 && now - lastFixSentTime < interval - interval / 8) {
+            return false;
+        }
+        lastFixSentTime = now;
+        return true;
+    }
+
+    /** Called after a datagram for this client went out, it counts as a response for liveness. */
+    public void onDatagramSent() {
+        lastResponseTime = SystemClock.elapsedRealtime();
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /** Number of frames that were replaced by newer ones or dropped because the queue was full. */
+    public int getDroppedFrames() {
+        synchronized (outbound) {
+            return droppedFrames;
+        }
+    }
+
+    public void sendResponse(ResponseFrame frame) {
+        if (closed) {
+            return;
+        }
+
+        boolean scheduleFlush;
+        synchronized (outbound) {
+            boolean stateFrameUnsent = queuedStateFrame != null && queuedStateFrame.buffer.position() == 0;
+            if (frame.isConfirmation() && stateFrameUnsent) {
+                // The client gets the newer state anyway, and the confirmation may refer to a frame
+                // that a newer one will replace
+                return;
+            }
+            // Latest wins: replace the queued state frame unless it's already partially written
+            if (frame.isReplaceable() && stateFrameUnsent) {
+                outbound.removeFirstOccurrence(queuedStateFrame);
+                queuedStateFrame = null;
+                droppedFrames++;
+            }
+            if (outbound.size() >= MAX_QUEUED_FRAMES) {
+                dropOldestUnsentFrame();
+            }
+
+            QueuedFrame queued = new QueuedFrame(frame);
+            outbound.add(queued);
+            if (frame.isReplaceable()) {
+                queuedStateFrame = queued;
+            }
+            scheduleFlush = !flushScheduled;
+            flushScheduled = true;
+        }
+        if (scheduleFlush) {
+            loop.requestFlush(this);
+        }
+    }
+
+    // Methods below are called on the loop thread only
+
+    void onPacketReceived() {
+        lastPacketTime = SystemClock.elapsedRealtime();
+    }
+
+    void setDatagramTransport(int udpPort, boolean multicast) throws IOException {
+        if (udpPort == 0) {
+            datagramTarget = null;
+            multicastInterface = null;
+        } else if (multicast) {
+            datagramTarget = null;
+            multicastInterface = NetworkInterface.getByInetAddress(channel.socket().getLocalAddress());
+        } else {
+            datagramTarget = new InetSocketAddress(channel.socket().getInetAddress(), udpPort);
+            multicastInterface = null;
+        }
+    }
+
+    void setCompactStream(boolean compactStream) {
+        this.compactStream = compactStream;
+    }
+
+    void setSubscription(int updateIntervalMs, int fieldMask, LocationProto.LocationPriority priority,
+                         int batchIntervalMs) {
+        if (priority == LocationProto.LocationPriority.UNRECOGNIZED) {
+            priority = LocationProto.LocationPriority.PRIORITY_DEFAULT;
+        }
+        // uint32 on the wire, so huge values arrive negative
+        if (updateIntervalMs != 0) {
+            updateIntervalMs = updateIntervalMs < 0 ? MAX_UPDATE_INTERVAL_MS
+                    : Math.max(MIN_UPDATE_INTERVAL_MS, Math.min(updateIntervalMs, MAX_UPDATE_INTERVAL_MS));
+        }
+        if (batchIntervalMs != 0) {
+            batchIntervalMs = batchIntervalMs < 0 ? MAX_BATCH_INTERVAL_MS
+                    : Math.max(MIN_BATCH_INTERVAL_MS, Math.min(batchIntervalMs, MAX_BATCH_INTERVAL_MS));
+        }
+        this.updateIntervalMs = updateIntervalMs;
+        this.fieldMask = fieldMask;
+        this.priority = priority;
+        this.batchIntervalMs = batchIntervalMs;
+    }
+
+    void onBatchAcked(long batchId) {
+        synchronized (unackedBatches) {
+            unackedBatches.remove(batchId);
+        }
+    }
+
+    int read(ByteBuffer buffer) throws IOException {
+        return channel.read(buffer);
+    }
+
+    void flush() throws IOException {
+        synchronized (outbound) {
+            flushScheduled = false;
+            while (!outbound.isEmpty()) {
+                // Write all queued frames with a single gathering write
+                int count = 0;
+                for (QueuedFrame frame : outbound) {
+                    writeBatch[count++] = frame.buffer;
+                    if (count == writeBatch.length) {
+                        break;
+                    }
+                }
+                channel.write(writeBatch, 0, count);
+                Arrays.fill(writeBatch, 0, count, null);
+
+                int written = 0;
+                long now = SystemClock.elapsedRealtimeNanos();
+                while (!outbound.isEmpty() && !outbound.peek().buffer.hasRemaining()) {
+                    QueuedFrame frame = outbound.poll();
+                    if (frame == queuedStateFrame) {
+                        queuedStateFrame = null;
+                    }
+                    writeLatency.record(now - frame.encodedAt);
+                    written++;
+                }
+                if (written > 0) {
+                    lastResponseTime = SystemClock.elapsedRealtime();
+                    Log.v(TAG, "Responses sent to " + clientAddress + ": " + written);
+                }
+                if (written < count) {
+                    // Socket buffer is full, continue when the channel becomes writable
+                    key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                    return;
+                }
+            }
+            key.interestOps(SelectionKey.OP_READ);
+        }
+    }
+
+    void close() {
+        closed = true;
+        key.cancel();
+        try {
+            channel.close();
+        } catch (IOException e) {
+            Log.e(TAG, "Error closing client socket", e);
+        }
+        synchronized (outbound) {
+            outbound.clear();
+            queuedStateFrame = null;
+        }
+    }
+
+    private void dropOldestUnsentFrame() {
+        QueuedFrame head = outbound.peek();
+        // Partially written frame must be completed, otherwise the stream gets corrupted
+        QueuedFrame victim = head != null && head.buffer.position() > 0 ? secondQueuedFrame() : head;
+        if (victim == null) {
+            return;
+        }
+        outbound.removeFirstOccurrence(victim);
+        if (victim == queuedStateFrame) {
+            queuedStateFrame = null;
+        }
+        droppedFrames++;
+        Log.w(TAG, "Outbound queue is full for " + clientAddress + ", dropped oldest frame");
+    }
+
+    private QueuedFrame secondQueuedFrame() {
+        Iterator<QueuedFrame> iterator = outbound.iterator();
+        iterator.next();
+        return iterator.hasNext() ? iterator.next() : null;
+    }
+}
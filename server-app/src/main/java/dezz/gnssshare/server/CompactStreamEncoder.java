@@ -0,0 +1,186 @@
+/*
+ * Copyright © 2025-2026 Dezz (https://github.com/DezzK)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package dezz.gnssshare.server;
+
+import java.util.function.LongSupplier;
+
+import dezz.gnssshare.proto.LocationProto;
+
+/**
+ * Encodes server states for clients that requested the compact stream.
+ * <p>
+ * The full state goes out as a keyframe every {@link #KEYFRAME_INTERVAL} fixes and whenever
+ * anything but the fix itself changes. Frames in between are {@link LocationProto.LocationDelta}s
+ * relative to that keyframe rather than to each other, so an unsent delta can still be replaced by
+ * a newer one in the queue, and a lost datagram doesn't break the frames after it.
+ */
+public class CompactStreamEncoder {
+    private static final int KEYFRAME_INTERVAL = 10;
+
+    // Quantization steps, the client decoder uses the same ones
+    private static final double COORDINATE_SCALE = 1e7;
+    private static final double CENTI_SCALE = 100.0;
+    private static final double MILLI_SCALE = 1000.0;
+    private static final long NANOS_PER_MICRO = 1000;
+
+    private LocationProto.ServerResponse lastState = null;
+    private LocationProto.ServerResponse keyframe = null;
+    private ResponseFrame keyframeFrame = null;
+    private long keyframeSequence = 0;
+    private int framesSinceKeyframe = 0;
+
+    private ResponseFrame latestFrame = null;
+    private long latestSequence = 0;
+    private ResponseFrame unchangedFrame = null;
+
+    /**
+     * Returns the frame that brings compact clients to the given state: a keyframe, a delta or,
+     * if nothing changed since the previous call, a no-change frame.
+     *
+     * @param sequenceSupplier gives the sequence number if a new keyframe or delta is needed
+     */
+    public synchronized ResponseFrame encode(LocationProto.ServerResponse state, LongSupplier sequenceSupplier) {
+        if (lastState != null && isSameState(lastState, state)) {
+            return getUnchangedFrame();
+        }
+        lastState = state;
+        long sequence = sequenceSupplier.getAsLong();
+
+        LocationProto.LocationDelta delta = needsKeyframe(state) ? null : encodeDelta(state, sequence);
+        if (delta == null) {
+            keyframe = state;
+            keyframeSequence = sequence;
+            keyframeFrame = ResponseFrame.encodeNonReplaceable(state.toBuilder().setSequence(sequence).build());
+            framesSinceKeyframe = 0;
+            return setLatestFrame(keyframeFrame, sequence);
+        }
+
+        framesSinceKeyframe++;
+        return setLatestFrame(ResponseFrame.encode(LocationProto.ServerResponse.newBuilder()
+                .setSequence(sequence)
+                .setLocationDelta(delta)
+                .build()), sequence);
+    }
+
+    /** Returns a frame telling that nothing changed since the latest keyframe or delta. */
+    public synchronized ResponseFrame getUnchangedFrame() {
+        if (unchangedFrame == null && latestFrame != null) {
+            unchangedFrame = ResponseFrame.encodeConfirmation(LocationProto.ServerResponse.newBuilder()
+                    .setUnchangedSince(latestSequence)
+                    .build());
+        }
+        return unchangedFrame;
+    }
+
+    /**
+     * Returns the frames a client needs to decode the stream from scratch: the current keyframe
+     * followed by the latest delta, if any.
+     */
+    public synchronized ResponseFrame[] getResyncFrames() {
+        if (keyframeFrame == null) {
+            return new ResponseFrame[0];
+        }
+        if (latestFrame == keyframeFrame) {
+            return new ResponseFrame[]{keyframeFrame};
+        }
+        return new ResponseFrame[]{keyframeFrame, latestFrame};
+    }
+
+    /**
+     * Returns the frames a client that reconnected needs to continue the stream, given the last
+     * sequence it handled in this session: none if it's up to date, the latest delta if it still
+     * has the current keyframe, the resync frames otherwise.
+     */
+    public synchronized ResponseFrame[] getResumeFrames(long lastSequence) {
+        if (keyframeFrame == null || lastSequence >= latestSequence) {
+            return new ResponseFrame[0];
+        }
+        if (lastSequence >= keyframeSequence) {
+            return new ResponseFrame[]{latestFrame};
+        }
+        return getResyncFrames();
+    }
+
+    private ResponseFrame setLatestFrame(ResponseFrame frame, long sequence) {
+        latestFrame = frame;
+        latestSequence = sequence;
+        unchangedFrame = null;
+        return frame;
+    }
+
+    private boolean needsKeyframe(LocationProto.ServerResponse state) {
+        return keyframe == null
+                || framesSinceKeyframe + 1 >= KEYFRAME_INTERVAL
+                || !state.hasLocationUpdate()
+                || !keyframe.hasLocationUpdate()
+                || !state.getStatus().equals(keyframe.getStatus())
+                || state.getLivenessTimeoutMs() != keyframe.getLivenessTimeoutMs()
+                || state.getThrottleLevel() != keyframe.getThrottleLevel()
+                || !state.getLocationUpdate().getProvider().equals(keyframe.getLocationUpdate().getProvider())
+                || state.getLocationUpdate().getCached() != keyframe.getLocationUpdate().getCached();
+    }
+
+    /** Returns null if some difference doesn't fit the delta, so a keyframe has to be sent. */
+    private LocationProto.LocationDelta encodeDelta(LocationProto.ServerResponse state, long sequence) {
+        LocationProto.LocationUpdate base = keyframe.getLocationUpdate();
+        LocationProto.LocationUpdate fix = state.getLocationUpdate();
+
+        long offset = sequence - keyframeSequence;
+        long latitude = quantize(fix.getLatitude(), COORDINATE_SCALE) - quantize(base.getLatitude(), COORDINATE_SCALE);
+        long longitude = quantize(fix.getLongitude(), COORDINATE_SCALE) - quantize(base.getLongitude(), COORDINATE_SCALE);
+        long altitude = quantize(fix.getAltitude(), CENTI_SCALE) - quantize(base.getAltitude(), CENTI_SCALE);
+        if (!fitsInt(offset) || !fitsInt(latitude) || !fitsInt(longitude) || !fitsInt(altitude)) {
+            return null;
+        }
+
+        return LocationProto.LocationDelta.newBuilder()
+                .setKeyframeOffset((int) offset)
+                .setTimestamp(fix.getTimestamp() - base.getTimestamp())
+                .setLatitude((int) latitude)
+                .setLongitude((int) longitude)
+                .setAltitude((int) altitude)
+                .setAccuracy((int) (quantize(fix.getAccuracy(), CENTI_SCALE) - quantize(base.getAccuracy(), CENTI_SCALE)))
+                .setBearing((int) (quantize(fix.getBearing(), CENTI_SCALE) - quantize(base.getBearing(), CENTI_SCALE)))
+                .setSpeed((int) (quantize(fix.getSpeed(), CENTI_SCALE) - quantize(base.getSpeed(), CENTI_SCALE)))
+                .setLocationAge((int) (quantize(fix.getLocationAge(), MILLI_SCALE) - quantize(base.getLocationAge(), MILLI_SCALE)))
+                .setSatellites(state.getSatellites() - keyframe.getSatellites())
+                .setElapsedRealtime(fix.getElapsedRealtimeNanos() / NANOS_PER_MICRO - base.getElapsedRealtimeNanos() / NANOS_PER_MICRO)
+                .build();
+    }
+
+    /** The same fix with the same satellite count and status is not worth another frame. */
+    private static boolean isSameState(LocationProto.ServerResponse a, LocationProto.ServerResponse b) {
+        if (a.getSatellites() != b.getSatellites()
+                || a.getLivenessTimeoutMs() != b.getLivenessTimeoutMs()
+                || a.getThrottleLevel() != b.getThrottleLevel()
+                || !a.getStatus().equals(b.getStatus())
+                || a.hasLocationUpdate() != b.hasLocationUpdate()) {
+            return false;
+        }
+        return !a.hasLocationUpdate()
+                || a.getLocationUpdate().getTimestamp() == b.getLocationUpdate().getTimestamp();
+    }
+
+    private static long quantize(double value, double scale) {
+        return Math.round(value * scale);
+    }
+
+    private static boolean fitsInt(long value) {
+        return value == (int) value;
+    }
+}
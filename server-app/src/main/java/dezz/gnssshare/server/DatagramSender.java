@@ -0,0 +1,95 @@
+/*
+ * Copyright © 2025-2026 Dezz (https://github.com/DezzK)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package dezz.gnssshare.server;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.nio.channels.DatagramChannel;
+import java.util.Objects;
+
+/**
+ * Sends {@link ResponseFrame}s as UDP datagrams, one datagram per frame without the length prefix.
+ * <p>
+ * The channel is non-blocking: when the socket buffer is full the datagram is simply dropped, which
+ * is fine for a latest-value stream where the next frame supersedes it anyway.
+ */
+public class DatagramSender {
+    private static final String TAG = "DatagramSender";
+    public static final String MULTICAST_GROUP = "239.255.88.87";
+    public static final int MULTICAST_PORT = 8888;
+    // Compact stream goes to its own port so clients of one stream don't have to skip the other
+    public static final int MULTICAST_COMPACT_PORT = 8889;
+
+    private DatagramChannel channel = null;
+    private NetworkInterface currentMulticastInterface = null;
+    private InetAddress multicastGroup = null;
+
+    public synchronized void send(ResponseFrame frame, InetSocketAddress target) {
+        try {
+            ensureChannel().send(frame.newPayloadBuffer(), target);
+        } catch (IOException e) {
+            Log.w(TAG, "Error sending datagram to " + target, e);
+        }
+    }
+
+    public synchronized void sendMulticast(ResponseFrame frame, NetworkInterface networkInterface, boolean compact) {
+        try {
+            DatagramChannel datagramChannel = ensureChannel();
+            if (!Objects.equals(currentMulticastInterface, networkInterface)) {
+                datagramChannel.setOption(StandardSocketOptions.IP_MULTICAST_IF, networkInterface);
+                currentMulticastInterface = networkInterface;
+            }
+            if (multicastGroup == null) {
+                multicastGroup = InetAddress.getByName(MULTICAST_GROUP);
+            }
+            datagramChannel.send(frame.newPayloadBuffer(),
+                    new InetSocketAddress(multicastGroup, compact ? MULTICAST_COMPACT_PORT : MULTICAST_PORT));
+        } catch (IOException e) {
+            Log.w(TAG, "Error sending multicast datagram on " + networkInterface, e);
+        }
+    }
+
+    public synchronized void close() {
+        if (channel == null) {
+            return;
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            Log.w(TAG, "Error closing datagram channel", e);
+        }
+        channel = null;
+        currentMulticastInterface = null;
+    }
+
+    private DatagramChannel ensureChannel() throws IOException {
+        if (channel == null) {
+            channel = DatagramChannel.open(StandardProtocolFamily.INET);
+            channel.configureBlocking(false);
+            // Keep multicast on the hotspot subnet
+            channel.setOption(StandardSocketOptions.IP_MULTICAST_TTL, 1);
+        }
+        return channel;
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright © 2025-2026 Dezz (https://github.com/DezzK)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package dezz.gnssshare.server;
+
+import android.location.Location;
+
+import dezz.gnssshare.proto.LocationProto;
+
+/**
+ * Recent fixes, so a client that connects mid-drive can hand its navigation app a trajectory
+ * instead of a single point to derive heading and speed trends from.
+ * <p>
+ * Fixes are kept in preallocated primitive arrays, recording one doesn't allocate. The oldest
+ * fix is overwritten once {@link #CAPACITY} is reached, which at 10 Hz still covers about 50
+ * seconds. Thread-safe: fixes are added on the location thread and read on the server loop.
+ */
+public class FixHistory {
+    // A backfill has to fit into one frame, like a batch
+    public static final int CAPACITY = LocationBatcher.MAX_BATCH_SIZE;
+    public static final int MAX_AGE_SEC = 60;
+
+    private static final int HAS_ALTITUDE = 1;
+    private static final int HAS_ACCURACY = 2;
+    private static final int HAS_BEARING = 4;
+    private static final int HAS_SPEED = 8;
+
+    private final long[] times = new long[CAPACITY];
+    private final long[] elapsedRealtimeNanos = new long[CAPACITY];
+    private final double[] latitudes = new double[CAPACITY];
+    private final double[] longitudes = new double[CAPACITY];
+    private final double[] altitudes = new double[CAPACITY];
+    private final float[] accuracies = new float[CAPACITY];
+    private final float[] bearings = new float[CAPACITY];
+    private final float[] speeds = new float[CAPACITY];
+    private final byte[] flags = new byte[CAPACITY];
+    private int next = 0;
+    private int size = 0;
+
+    /** Records a fresh fix, fixes without {@link Location#getElapsedRealtimeNanos()} are skipped. */
+    public synchronized void add(Location location) {
+        if (location.getElapsedRealtimeNanos() == 0) {
+            return;
+        }
+        int i = next;
+        times[i] = location.getTime();
+        elapsedRealtimeNanos[i] = location.getElapsedRealtimeNanos();
+        latitudes[i] = location.getLatitude();
+        longitudes[i] = location.getLongitude();
+        altitudes[i] = location.getAltitude();
+        accuracies[i] = location.getAccuracy();
+        bearings[i] = location.getBearing();
+        speeds[i] = location.getSpeed();
+        flags[i] = (byte) ((location.hasAltitude() ? HAS_ALTITUDE : 0)
+                | (location.hasAccuracy() ? HAS_ACCURACY : 0)
+                | (location.hasBearing() ? HAS_BEARING : 0)
+                | (location.hasSpeed() ? HAS_SPEED : 0));
+        next = (i + 1) % CAPACITY;
+        size = Math.min(size + 1, CAPACITY);
+    }
+
+    public synchronized void clear() {
+        next = 0;
+        size = 0;
+    }
+
+    /**
+     * Builds the fixes taken after the given time, oldest first.
+     *
+     * @param sinceNanos {@link android.os.SystemClock#elapsedRealtimeNanos()} of the oldest fix to include
+     */
+    public synchronized LocationProto.LocationUpdateBatch getSince(long sinceNanos) {
+        LocationProto.LocationUpdateBatch.Builder batch = LocationProto.LocationUpdateBatch.newBuilder();
+        for (int n = 0; n < size; n++) {
+            int i = (next - size + n + CAPACITY) % CAPACITY;
+            if (elapsedRealtimeNanos[i] < sinceNanos) {
+                continue;
+            }
+            LocationProto.LocationUpdate.Builder fix = LocationProto.LocationUpdate.newBuilder()
+                    .setTimestamp(times[i])
+                    .setElapsedRealtimeNanos(elapsedRealtimeNanos[i])
+                    .setLatitude(latitudes[i])
+                    .setLongitude(longitudes[i]);
+            if ((flags[i] & HAS_ALTITUDE) != 0) {
+                fix.setAltitude(altitudes[i]);
+            }
+            if ((flags[i] & HAS_ACCURACY) != 0) {
+                fix.setAccuracy(accuracies[i]);
+            }
+            if ((flags[i] & HAS_BEARING) != 0) {
+                fix.setBearing(bearings[i]);
+            }
+            if ((flags[i] & HAS_SPEED) != 0) {
+                fix.setSpeed(speeds[i]);
+            }
+            batch.addLocations(fix);
+        }
+        return batch.build();
+    }
+}
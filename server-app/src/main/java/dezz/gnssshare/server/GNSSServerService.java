@@ -33,7 +33,10 @@ import android.location.LocationManager;
 import android.os.Build;
 import android.os.Handler;
 import android.os.IBinder;
+import android.os.HandlerThread;
 import android.os.Looper;
+import android.os.Process;
+import android.os.SystemClock;
 import android.util.Log;
 
 import androidx.annotation.NonNull;
@@ -48,30 +51,54 @@ import com.google.android.gms.location.LocationServices;
 import com.google.android.gms.location.Priority;
 
 import java.io.IOException;
-import java.io.OutputStream;
-import java.net.ServerSocket;
-import java.net.Socket;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.security.SecureRandom;
 import java.util.ArrayList;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.Locale;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 import dezz.gnssshare.proto.LocationProto;
+import dezz.gnssshare.shared.LatencyHistogram;
+import dezz.gnssshare.shared.NotificationGovernor;
+import dezz.gnssshare.shared.RateMeter;
 import dezz.gnssshare.shared.ServerStatus;
 
-public class GNSSServerService extends Service {
+public class GNSSServerService extends Service implements ServerEventLoop.Listener {
     private static final String TAG = "GNSSServerService";
     private static final int PORT = 8887;
     private static final String CHANNEL_ID = "GNSSServerChannel";
     private static final int NOTIFICATION_ID = 1;
     private static final String PREF_IS_SERVICE_ENABLED = "isServiceEnabled";
     private static final long BT_AUTO_STOP_DELAY_MS = 10000; // 10 seconds
+    // Heartbeats are only answered when nothing was sent to the client for this long
+    private static final long IDLE_LINK_GAP_MS = 1000;
+    // Notification changes on every fix, but there's no point in redrawing it more often
+    private static final long NOTIFICATION_MIN_INTERVAL_MS = 1000;
+    // GNSS interval for clients that didn't ask for a rate
+    private static final int DEFAULT_UPDATE_INTERVAL_MS = 500;
+    // In high-rate mode: 0 lets the provider report as fast as the chip can, typically 5-10 Hz
+    private static final int HIGH_RATE_UPDATE_INTERVAL_MS = 0;
+    private static final long RATE_LOG_INTERVAL_MS = 10000;
+    // While parked: one fix in this interval is enough to notice the car moving off
+    private static final int STATIONARY_UPDATE_INTERVAL_MS = 5000;
+    private static final int MIN_DISTANCE_M = 0;
+    // Head units take 20-40 s from Bluetooth connect to their first connection, GNSS is stopped
+    // if nobody shows up within this time
+    private static final long PREWARM_TIMEOUT_MS = 120000;
+
+    /** Start intent extra: begin warming GNSS up right away instead of waiting for a client. */
+    public static final String EXTRA_PREWARM = "dezz.gnssshare.server.PREWARM";
 
     private static boolean running = false;
     private static GNSSServerService instance = null;
 
-    private String serverStartError = null;
-
-    private ServerSocket serverSocket;
+    // Written on the main thread, and on the loop's thread when it fails to start
+    private volatile String serverStartError = null;
+    private volatile ServerEventLoop serverLoop;
+    private final DatagramSender datagramSender = new DatagramSender();
     private LocationManager locationManager = null;
     private FusedLocationProviderClient fusedLocationProviderClient = null;
     private final com.google.android.gms.location.LocationListener fusedLocationListener = this::handleLocationUpdate;
@@ -93,24 +120,65 @@ public class GNSSServerService extends Service {
     };
 
     private NotificationManager notificationManager;
+    private NotificationGovernor notificationGovernor;
+    private NotificationCompat.Builder notificationBuilder;
 
-    private final ArrayList<ClientHandler> connectedClients = new ArrayList<>();
-    private final ExecutorService executor = Executors.newCachedThreadPool();
+    // Changes only when clients come and go, so broadcasts iterate it without locking or copying
+    private final CopyOnWriteArrayList<ClientConnection> connectedClients = new CopyOnWriteArrayList<>();
     private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    // Fixes and satellite updates are handled here and go straight to the server loop,
+    // so they don't wait behind UI work and Bluetooth broadcasts on the main thread
+    private HandlerThread locationThread;
+    private Handler locationHandler;
     private final GnssStatus.Callback gnssStatusCallback = new GnssStatus.Callback() {
         @Override
         public void onSatelliteStatusChanged(@NonNull GnssStatus status) {
             gnssStatus = status;
-            lastServerResponse.setSatellites(getSatelliteCount());
+            int satellites = getSatelliteCount();
+            ServerState current = state.get();
+            if (satellites != current.getSatellites()) {
+                current = state.updateAndGet(s -> s.withSatellites(satellites));
+
+                // Without a fix there are no location frames to carry the satellite count
+                if (current.getLocation() == null) {
+                    broadcastResponse(false);
+                }
+            }
 
-            if (isServiceRunning() && !connectedClients.isEmpty() && !lastServerResponse.hasLocationUpdate()) {
-                mainHandler.post(() -> updateNotification("GNSS status changed"));
+            if (isServiceRunning() && !connectedClients.isEmpty() && current.getLocation() == null) {
+                updateNotification("GNSS status changed");
             }
         }
     };
 
-    private final LocationProto.ServerResponse.Builder lastServerResponse = LocationProto.ServerResponse.newBuilder()
-            .setStatus(ServerStatus.UNINITIALIZED.name());
+    // Published state, every change replaces the snapshot together with its encoded frames
+    private final AtomicReference<ServerState> state = new AtomicReference<>(ServerState.initial());
+    private final ResponseEncoder responseEncoder = new ResponseEncoder();
+    private final CompactStreamEncoder compactEncoder = new CompactStreamEncoder();
+    private final AtomicLong responseSequence = new AtomicLong();
+    // Tells clients which run of the server the sequence numbers belong to
+    private final long sessionId = newSessionId();
+
+    // Fixes coming from the provider and fixes sent to at least one client
+    private final RateMeter fixInputRate = new RateMeter(5);
+    private final RateMeter fixOutputRate = new RateMeter(5);
+    private long lastRateLogTime = 0;
+
+    // Latency per hop: fix made by GNSS -> delivered here -> frames encoded and queued -> written
+    // to the client's socket
+    private static final long LATENCY_WINDOW_MS = 30000;
+    private final LatencyHistogram fixDeliveryLatency = new LatencyHistogram(LATENCY_WINDOW_MS);
+    private final LatencyHistogram encodeLatency = new LatencyHistogram(LATENCY_WINDOW_MS);
+    private final LatencyHistogram writeLatency = new LatencyHistogram(LATENCY_WINDOW_MS);
+
+    // Recent fixes for clients that ask for a backfill when they connect
+    private final FixHistory fixHistory = new FixHistory();
+
+    // Fixes for clients in batched delivery mode, owned by the location thread
+    private final LocationBatcher locationBatcher = new LocationBatcher();
+    private final Runnable flushLocationBatch = this::flushLocationBatch;
+    // Shortest batch interval among the clients, 0 if none of them batches
+    private volatile int batchIntervalMs = 0;
 
     // We need to use such runnable to make scheduled stopping cancelable
     private final Runnable stopLocationUpdates = this::stopLocationUpdates;
@@ -118,21 +186,53 @@ public class GNSSServerService extends Service {
     // Bluetooth auto-stop runnable
     private final Runnable btAutoStopRunnable = this::btAutoStopService;
 
-    private GnssStatus gnssStatus = null;
+    private volatile GnssStatus gnssStatus = null;
     private boolean isGnssActive = false;
+    // What GNSS is asked for: the shortest interval and the highest priority among the clients.
+    // Owned by the main thread.
+    private int locationIntervalMs = DEFAULT_UPDATE_INTERVAL_MS;
+    private LocationProto.LocationPriority locationPriority = LocationProto.LocationPriority.PRIORITY_HIGH_ACCURACY;
+    // How long GNSS may hold fixes back, only while every client batches
+    private int maxUpdateDelayMs = 0;
+    private final MotionPolicy motionPolicy = new MotionPolicy();
+    private volatile boolean adaptivePowerEnabled = false;
+    // Steps the load down when the phone overheats or runs low on battery
+    private PowerGovernor powerGovernor;
+    // Minimum time between broadcast fixes set by the throttle level, 0 for none
+    private volatile int throttleIntervalMs = 0;
+    private long lastBroadcastFixTime = 0; // Owned by the location thread
+    // How long GNSS keeps running without clients
+    private final KeepWarmPolicy keepWarmPolicy = new KeepWarmPolicy(Preferences.DEFAULT_KEEP_WARM_SEC * 1000L);
+    // When the running GNSS session started, 0 once it delivered its first fix
+    private volatile long gnssStartTime = 0;
+    // Time to first fix over all sessions, owned by the location thread
+    private int ttffSessions = 0;
+    private long ttffTotalMs = 0;
 
     @Override
     public void onCreate() {
         notificationManager = getSystemService(NotificationManager.class);
 
         createNotificationChannel();
+        notificationGovernor = new NotificationGovernor(notificationManager, NOTIFICATION_ID,
+                NOTIFICATION_MIN_INTERVAL_MS, notificationRenderer);
 
+        CharSequence title = notificationRenderer.getTitle();
+        CharSequence text = notificationRenderer.getText();
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.UPSIDE_DOWN_CAKE) {
-            startForeground(NOTIFICATION_ID, createNotification(),
+            startForeground(NOTIFICATION_ID, notificationRenderer.build(title, text),
                     ServiceInfo.FOREGROUND_SERVICE_TYPE_LOCATION);
         } else {
-            startForeground(NOTIFICATION_ID, createNotification());
+            startForeground(NOTIFICATION_ID, notificationRenderer.build(title, text));
         }
+        notificationGovernor.onPosted(title, text);
+
+        locationThread = new HandlerThread("GNSSLocation", Process.THREAD_PRIORITY_DISPLAY);
+        locationThread.start();
+        locationHandler = new Handler(locationThread.getLooper());
+
+        powerGovernor = new PowerGovernor(this, this::onThrottleLevelChanged);
+        powerGovernor.start();
 
         running = true;
         instance = this;
@@ -143,6 +243,10 @@ public class GNSSServerService extends Service {
         serverStartError = null;
         startServer();
 
+        if (intent != null && intent.getBooleanExtra(EXTRA_PREWARM, false)) {
+            prewarmLocation();
+        }
+
         return START_STICKY;
     }
 
@@ -154,12 +258,12 @@ public class GNSSServerService extends Service {
         cancelBluetoothAutoStop();
         stopServer();
         stopLocationUpdates();
+        locationThread.quitSafely();
+        powerGovernor.stop();
 
         locationManager = null;
 
-        executor.shutdown();
-
-        notificationManager.cancel(NOTIFICATION_ID);
+        notificationGovernor.cancel();
         notificationManager = null;
     }
 
@@ -176,7 +280,7 @@ public class GNSSServerService extends Service {
         locationManager = getSystemService(LocationManager.class);
 
         try {
-            locationManager.registerGnssStatusCallback(gnssStatusCallback, mainHandler);
+            locationManager.registerGnssStatusCallback(gnssStatusCallback, locationHandler);
 
             Log.d(TAG, "GNSS status callback registered");
         } catch (SecurityException e) {
@@ -225,65 +329,101 @@ public class GNSSServerService extends Service {
     }
 
     private void startServer() {
-        executor.execute(() -> {
-            try {
-                serverSocket = new ServerSocket(PORT);
-                Log.d(TAG, "Server started on port " + PORT);
-            } catch (Throwable e) {
-                Log.e(TAG, "Error starting server", e);
-                serverStartError = e.getMessage();
-                stopServer();
-                return;
-            }
+        if (serverLoop != null) {
+            return;
+        }
 
-            while (serverSocket != null && !serverSocket.isClosed()) {
-                try {
-                    Socket clientSocket = serverSocket.accept();
-                    Log.d(TAG, "Client connected: " + clientSocket.getRemoteSocketAddress());
-
-                    ClientHandler clientHandler = new ClientHandler(clientSocket);
-                    synchronized (connectedClients) {
-                        connectedClients.add(clientHandler);
-                        // Start location updates when first client connects
-                        if (connectedClients.size() == 1) {
-                            mainHandler.post(this::startLocationUpdates);
-                        }
-                    }
-                    executor.execute(clientHandler);
+        ServerEventLoop loop;
+        try {
+            loop = new ServerEventLoop(PORT, this, writeLatency);
+        } catch (IOException e) {
+            Log.e(TAG, "Error starting server", e);
+            onServerFailed(e);
+            return;
+        }
+        serverLoop = loop;
+        loop.start();
+    }
 
-                    // Cancel any pending BT auto-stop since a client just connected
-                    cancelBluetoothAutoStop();
+    private void stopServer() {
+        ServerEventLoop loop = serverLoop;
+        serverLoop = null;
+        if (loop != null) {
+            // The loop disconnects all clients when it exits
+            loop.shutdown();
+        }
+        datagramSender.close();
+    }
 
-                    updateNotification("New client connected");
-                } catch (IOException e) {
-                    if (serverSocket != null && !serverSocket.isClosed()) {
-                        Log.e(TAG, "Error accepting client connection", e);
-                    }
-                }
-            }
-        });
+    // ServerEventLoop.Listener implementation
+    @Override
+    public void onServerFailed(Exception e) {
+        serverStartError = e.getMessage();
+        serverLoop = null;
+        updateNotification("Server failed");
     }
 
-    private void stopServer() {
-        Log.d(TAG, "Stopping server");
-        try {
-            if (serverSocket != null) {
-                if (!serverSocket.isClosed()) {
-                    serverSocket.close();
-                }
-                serverSocket = null;
-            }
+    @Override
+    public void onClientConnected(ClientConnection client) {
+        // Clients are added and removed on the server loop thread only
+        connectedClients.add(client);
+        // Start location updates when first client connects
+        if (connectedClients.size() == 1) {
+            mainHandler.post(this::onFirstClientConnected);
+        } else {
+            mainHandler.post(this::onSubscriptionsChanged);
+        }
 
-            // Copy clients list to avoid concurrent modification
-            ArrayList<ClientHandler> clients;
-            synchronized (connectedClients) {
-                clients = new ArrayList<>(connectedClients);
-            }
-            for (ClientHandler client : clients) {
-                client.disconnect();
+        client.sendResponse(getResponseFrame(client));
+
+        // Cancel any pending BT auto-stop since a client just connected
+        cancelBluetoothAutoStop();
+
+        updateNotification("New client connected");
+    }
+
+    @Override
+    public void onHeartbeatReceived(ClientConnection client) {
+        // Every frame proves the server is alive, so only answer when the link has been idle
+        if (client.getLastResponseTime() < client.getLastPacketTime() - IDLE_LINK_GAP_MS) {
+            if (client.getBatchIntervalMs() > 0) {
+                sendFrame(client, getStatusFrame());
+            } else if (client.isCompactStream()) {
+                // Make sure the latest state is encoded, then just confirm it. A downsampled
+                // client may have skipped that frame, so it gets the frame itself.
+                ResponseFrame frame = getCompactFrame();
+                sendFrame(client, client.getUpdateIntervalMs() > 0 ? frame : compactEncoder.getUnchangedFrame());
+            } else {
+                sendFrame(client, getResponseFrame(client));
             }
-        } catch (IOException e) {
-            Log.e(TAG, "Error stopping server", e);
+        }
+    }
+
+    private void onFirstClientConnected() {
+        keepWarmPolicy.onFirstClientConnected(SystemClock.elapsedRealtime());
+        startLocationUpdates();
+    }
+
+    /**
+     * Starts GNSS before any client connected, so the first fix is waiting when the head unit
+     * finishes booting. Stops again after {@link #PREWARM_TIMEOUT_MS} if no client came.
+     */
+    private void prewarmLocation() {
+        if (!Preferences.bluetoothPrewarmEnabled(this) || !connectedClients.isEmpty()) {
+            return;
+        }
+        Log.i(TAG, "Warming up location for up to " + PREWARM_TIMEOUT_MS + "ms before any client connects");
+        startLocationUpdates();
+        // The first client cancels it, just like a stop scheduled after the last one left
+        mainHandler.removeCallbacks(this.stopLocationUpdates);
+        mainHandler.postDelayed(this.stopLocationUpdates, PREWARM_TIMEOUT_MS);
+    }
+
+    /** Called from BluetoothReceiver when a trigger device connects to a running service. */
+    public static void requestPrewarm() {
+        GNSSServerService service = instance;
+        if (service != null) {
+            service.mainHandler.post(service::prewarmLocation);
         }
     }
 
@@ -291,36 +431,31 @@ public class GNSSServerService extends Service {
         // If location updates were scheduled to be stopped, remove the scheduled action
         mainHandler.removeCallbacks(this.stopLocationUpdates);
 
+        if (isGnssActive) {
+            // Kept warm since the last client left or warmed up in advance, the new client
+            // already got the latest fix
+            Log.d(TAG, "Location updates are still running");
+            onSubscriptionsChanged();
+            return;
+        }
+
         initializeLocationManager();
         initializeFusedLocationProviderClient();
 
         try {
             Log.d(TAG, "Starting location updates...");
 
-            lastServerResponse.setStatus(ServerStatus.AWAITING_LOCATION.name());
+            state.updateAndGet(s -> s.withStatus(ServerStatus.AWAITING_LOCATION));
 
-            final int MIN_INTERVAL_MS = 500;
-            final int MIN_DISTANCE_M = 0;
-            if (fusedLocationProviderClient != null) {
-                LocationRequest request = new LocationRequest.Builder(MIN_INTERVAL_MS)
-                        .setMinUpdateDistanceMeters(MIN_DISTANCE_M)
-                        .setWaitForAccurateLocation(false)
-                        .setPriority(Priority.PRIORITY_HIGH_ACCURACY)
-                        .setGranularity(Granularity.GRANULARITY_FINE)
-                        .build();
-                fusedLocationProviderClient.requestLocationUpdates(request, fusedLocationListener, Looper.getMainLooper());
-            } else {
-                locationManager.requestLocationUpdates(
-                        LocationManager.GPS_PROVIDER,
-                        MIN_INTERVAL_MS,
-                        MIN_DISTANCE_M,
-                        locationListener
-                );
-            }
+            motionPolicy.start(SystemClock.elapsedRealtime());
+            aggregateSubscriptions();
+            requestLocationUpdates();
+            gnssStartTime = SystemClock.elapsedRealtime();
 
             Log.d(TAG, "Location updates started");
 
             isGnssActive = true;
+            seedLastKnownLocation();
 
             updateNotification("Started location updates");
         } catch (SecurityException e) {
@@ -330,6 +465,157 @@ public class GNSSServerService extends Service {
         }
     }
 
+    /**
+     * Gives clients the last known fix until GNSS delivers a fresh one, flagged as cached. It only
+     * replaces a fix that is cached as well and older.
+     */
+    private void seedLastKnownLocation() {
+        if (fusedLocationProviderClient != null) {
+            fusedLocationProviderClient.getLastLocation().addOnSuccessListener(this::applyLastKnownLocation);
+        } else {
+            applyLastKnownLocation(locationManager.getLastKnownLocation(LocationManager.GPS_PROVIDER));
+        }
+    }
+
+    private void applyLastKnownLocation(Location location) {
+        if (location == null) {
+            return;
+        }
+        float locationAge = getLocationAge(location, SystemClock.elapsedRealtimeNanos());
+        ServerState seeded = state.updateAndGet(s -> {
+            Location current = s.getLocation();
+            if (current == null || (s.isLocationCached() && current.getTime() < location.getTime())) {
+                return s.withCachedLocation(location, locationAge);
+            }
+            return s;
+        });
+        if (seeded.getLocation() == location) {
+            Log.i(TAG, "Seeded clients with the last known fix, " + locationAge + "s old");
+            locationHandler.post(() -> broadcastResponse(false));
+        }
+    }
+
+    /**
+     * Asks for updates at the current interval, priority and batching delay, replacing the
+     * previous request.
+     */
+    private void requestLocationUpdates() {
+        if (fusedLocationProviderClient != null) {
+            LocationRequest request = new LocationRequest.Builder(locationIntervalMs)
+                    .setMinUpdateDistanceMeters(MIN_DISTANCE_M)
+                    .setWaitForAccurateLocation(false)
+                    .setPriority(toFusedPriority(locationPriority))
+                    .setGranularity(Granularity.GRANULARITY_FINE)
+                    .setMaxUpdateDelayMillis(maxUpdateDelayMs)
+                    .build();
+            fusedLocationProviderClient.requestLocationUpdates(request, fusedLocationListener, locationThread.getLooper());
+        } else if (maxUpdateDelayMs > 0 && Build.VERSION.SDK_INT >= Build.VERSION_CODES.S) {
+            // Batched variant: the GNSS chip keeps fixes and delivers them together
+            android.location.LocationRequest request = new android.location.LocationRequest.Builder(locationIntervalMs)
+                    .setMinUpdateDistanceMeters(MIN_DISTANCE_M)
+                    .setMaxUpdateDelayMillis(maxUpdateDelayMs)
+                    .build();
+            locationManager.requestLocationUpdates(LocationManager.GPS_PROVIDER, request, locationHandler::post,
+                    locationListener);
+        } else {
+            // GPS provider has no notion of priority, only the interval applies
+            locationManager.requestLocationUpdates(
+                    LocationManager.GPS_PROVIDER,
+                    locationIntervalMs,
+                    MIN_DISTANCE_M,
+                    locationListener,
+                    locationThread.getLooper()
+            );
+        }
+    }
+
+    private static int toFusedPriority(LocationProto.LocationPriority priority) {
+        switch (priority) {
+            case PRIORITY_LOW_POWER:
+                return Priority.PRIORITY_LOW_POWER;
+            case PRIORITY_BALANCED:
+                return Priority.PRIORITY_BALANCED_POWER_ACCURACY;
+            default:
+                return Priority.PRIORITY_HIGH_ACCURACY;
+        }
+    }
+
+    /**
+     * Recomputes the GNSS interval and priority from the clients' subscriptions.
+     *
+     * @return whether they changed
+     */
+    private boolean aggregateSubscriptions() {
+        if (connectedClients.isEmpty()) {
+            return false;
+        }
+
+        int defaultInterval = Preferences.highRateEnabled(this) ? HIGH_RATE_UPDATE_INTERVAL_MS : DEFAULT_UPDATE_INTERVAL_MS;
+        int interval = ClientConnection.MAX_UPDATE_INTERVAL_MS;
+        LocationProto.LocationPriority priority = LocationProto.LocationPriority.PRIORITY_LOW_POWER;
+        int batchInterval = 0;
+        boolean allBatching = true;
+        for (ClientConnection client : connectedClients) {
+            int requestedBatch = client.getBatchIntervalMs();
+            if (requestedBatch > 0) {
+                batchInterval = batchInterval > 0 ? Math.min(batchInterval, requestedBatch) : requestedBatch;
+            } else {
+                allBatching = false;
+            }
+
+            int requested = client.getUpdateIntervalMs();
+            interval = Math.min(interval, requested > 0 ? requested : defaultInterval);
+
+            LocationProto.LocationPriority clientPriority = client.getPriority();
+            if (clientPriority == LocationProto.LocationPriority.PRIORITY_DEFAULT) {
+                clientPriority = LocationProto.LocationPriority.PRIORITY_HIGH_ACCURACY;
+            }
+            if (clientPriority.getNumber() > priority.getNumber()) {
+                priority = clientPriority;
+            }
+        }
+
+        // Parked: slow down, the first fix showing motion brings the full rate back
+        adaptivePowerEnabled = Preferences.adaptivePowerEnabled(this);
+        if (adaptivePowerEnabled && motionPolicy.getState() == MotionPolicy.State.STATIONARY) {
+            interval = Math.max(interval, STATIONARY_UPDATE_INTERVAL_MS);
+            if (priority.getNumber() > LocationProto.LocationPriority.PRIORITY_BALANCED_VALUE) {
+                priority = LocationProto.LocationPriority.PRIORITY_BALANCED;
+            }
+        }
+
+        // Overheating or low battery: the throttle level caps both
+        LocationProto.ThrottleLevel throttleLevel = powerGovernor.getLevel();
+        interval = Math.max(interval, PowerGovernor.getMinUpdateIntervalMs(throttleLevel));
+        LocationProto.LocationPriority maxPriority = PowerGovernor.getMaxPriority(throttleLevel);
+        if (priority.getNumber() > maxPriority.getNumber()) {
+            priority = maxPriority;
+        }
+
+        // Only the location thread adds to batches, so it picks up the new interval with the next fix
+        batchIntervalMs = batchInterval;
+        int maxUpdateDelay = allBatching ? batchInterval : 0;
+
+        if (interval == locationIntervalMs && priority == locationPriority && maxUpdateDelay == maxUpdateDelayMs) {
+            return false;
+        }
+        Log.i(TAG, "Location request changed: " + interval + "ms, " + priority + ", max delay " + maxUpdateDelay + "ms");
+        locationIntervalMs = interval;
+        locationPriority = priority;
+        maxUpdateDelayMs = maxUpdateDelay;
+        return true;
+    }
+
+    private void onSubscriptionsChanged() {
+        if (aggregateSubscriptions() && isGnssActive) {
+            try {
+                requestLocationUpdates();
+            } catch (SecurityException e) {
+                Log.e(TAG, "Location permission not granted", e);
+            }
+        }
+    }
+
     private void stopLocationUpdates() {
         if (running && !connectedClients.isEmpty()) {
             Log.w(TAG, "Location updates not stopped: still have clients connected");
@@ -350,79 +636,387 @@ public class GNSSServerService extends Service {
         }
 
         Log.d(TAG, "Location updates stopped");
+        motionPolicy.stop(SystemClock.elapsedRealtime());
+        logPowerStateTimes();
+        keepWarmPolicy.onStopped();
 
         isGnssActive = false;
-        lastServerResponse.setStatus(ServerStatus.LOCATION_STOPPED.name());
+        gnssStartTime = 0;
+        // The fix stays for clients connecting later, but it's no longer current
+        state.updateAndGet(s -> s.withStatus(ServerStatus.LOCATION_STOPPED)
+                .withCachedLocation(s.getLocation(), s.getLocationAge()));
 
         updateNotification("Stopped location updates");
     }
 
     private void handleLocationUpdate(Location location) {
-        Log.d(TAG, String.format("Handling location update: %s", location));
+        long arrivedAt = SystemClock.elapsedRealtimeNanos();
+        long now = arrivedAt / 1000000; // Same clock as SystemClock.elapsedRealtime()
+        fixInputRate.mark(now);
+        if (location.getElapsedRealtimeNanos() != 0) {
+            // Includes the time GNSS held the fix back for batching clients
+            fixDeliveryLatency.record(arrivedAt - location.getElapsedRealtimeNanos(), now);
+        }
+
+        long startTime = gnssStartTime;
+        if (startTime != 0) {
+            gnssStartTime = 0;
+            ttffSessions++;
+            ttffTotalMs += now - startTime;
+            Log.i(TAG, "Time to first fix: " + (now - startTime) + "ms, average " + ttffTotalMs / ttffSessions +
+                    "ms over " + ttffSessions + " sessions");
+        }
+
+        // The fix is kept as is and encoded straight from its fields
+        float locationAge = getLocationAge(location, arrivedAt);
+        state.updateAndGet(s -> s.withLocation(location, locationAge));
+
+        // Broadcast to all connected clients first, the notification can wait.
+        // Throttled: fixes the provider delivers faster than asked for, e.g. because of other apps, are
+        // only batched. The slack keeps fixes arriving slightly early from being skipped.
+        int throttleInterval = throttleIntervalMs;
+        if (throttleInterval == 0 || now - lastBroadcastFixTime >= throttleInterval - throttleInterval / 8) {
+            Log.d(TAG, "Broadcasting location to " + connectedClients.size() + " clients: " + location);
+            if (broadcastResponse(true)) {
+                encodeLatency.record(SystemClock.elapsedRealtimeNanos() - arrivedAt, now);
+                fixOutputRate.mark(now);
+                lastBroadcastFixTime = now;
+            }
+        }
+        addToBatch(location, locationAge);
+        fixHistory.add(location);
+
+        if (adaptivePowerEnabled && motionPolicy.onFix(location, now)) {
+            Log.i(TAG, "Motion state changed to " + motionPolicy.getState());
+            logPowerStateTimes();
+            mainHandler.post(this::onSubscriptionsChanged);
+        }
+
+        if (now - lastRateLogTime >= RATE_LOG_INTERVAL_MS) {
+            lastRateLogTime = now;
+            Log.i(TAG, String.format(Locale.US, "Fix rate: %.1f Hz in, %.1f Hz out", fixInputRate.getRate(now),
+                    fixOutputRate.getRate(now)));
+            Log.i(TAG, "Latency GNSS -> server: " + fixDeliveryLatency.format(now));
+            Log.i(TAG, "Latency fix -> encoded and queued: " + encodeLatency.format(now));
+            Log.i(TAG, "Latency encoded -> written to socket: " + writeLatency.format(now));
+        }
+
+        updateNotification("Received location update");
+    }
+
+    /** Random and never 0, which clients read as a server without sessions. */
+    private static long newSessionId() {
+        long id;
+        do {
+            id = new SecureRandom().nextLong();
+        } while (id == 0);
+        return id;
+    }
 
-        // Create protobuf message
-        LocationProto.LocationUpdate.Builder builder = LocationProto.LocationUpdate.newBuilder()
-                .setTimestamp(location.getTime())
-                .setLatitude(location.getLatitude())
-                .setLongitude(location.getLongitude())
-                .setProvider(location.getProvider())
-                .setLocationAge((System.currentTimeMillis() - location.getTime()) / 1000.0f);
+    /**
+     * Seconds between the fix and the given {@link SystemClock#elapsedRealtimeNanos()}. The
+     * monotonic clock is used when the fix has it, the wall clock may jump.
+     */
+    private static float getLocationAge(Location location, long nowNanos) {
+        long fixNanos = location.getElapsedRealtimeNanos();
+        if (fixNanos != 0) {
+            return (nowNanos - fixNanos) / 1e9f;
+        }
+        return (System.currentTimeMillis() - location.getTime()) / 1000.0f;
+    }
 
-        if (location.hasAltitude()) {
-            builder.setAltitude(location.getAltitude());
+    private void addToBatch(Location location, float locationAge) {
+        int interval = batchIntervalMs;
+        if (interval <= 0) {
+            if (!locationBatcher.isEmpty()) {
+                // The last batching client is gone
+                locationHandler.removeCallbacks(flushLocationBatch);
+                locationBatcher.clear();
+            }
+            return;
         }
-        if (location.hasAccuracy()) {
-            builder.setAccuracy(location.getAccuracy());
+
+        if (locationBatcher.isEmpty()) {
+            locationHandler.postDelayed(flushLocationBatch, interval);
         }
-        if (location.hasBearing()) {
-            builder.setBearing(location.getBearing());
+        locationBatcher.add(location, locationAge);
+        if (locationBatcher.isFull()) {
+            locationHandler.removeCallbacks(flushLocationBatch);
+            flushLocationBatch();
         }
-        if (location.hasSpeed()) {
-            builder.setSpeed(location.getSpeed());
+    }
+
+    private void flushLocationBatch() {
+        // Encoded once and shared by every batching client
+        ResponseFrame frame = locationBatcher.flush(state.get(), ServerEventLoop.LIVENESS_TIMEOUT_MS, sessionId);
+        if (frame == null) {
+            return;
+        }
+        long batchId = locationBatcher.getLastBatchId();
+        int recipients = 0;
+        for (ClientConnection client : connectedClients) {
+            if (client.getBatchIntervalMs() > 0) {
+                client.sendBatch(batchId, frame);
+                recipients++;
+            }
         }
+        Log.d(TAG, "Batch " + batchId + " (" + frame.size() + " bytes) sent to " + recipients + " clients");
+    }
 
-        lastServerResponse.setStatus(ServerStatus.TRANSMITTING_LOCATION.name())
-                .setLocationUpdate(builder.build());
+    /** Called on the main thread by the power governor. */
+    private void onThrottleLevelChanged(LocationProto.ThrottleLevel level) {
+        state.updateAndGet(s -> s.withThrottleLevel(level));
+        throttleIntervalMs = PowerGovernor.getMinUpdateIntervalMs(level);
+        // Let clients know right away instead of with the next, possibly much later, fix
+        locationHandler.post(() -> broadcastResponse(false));
+        onSubscriptionsChanged();
+        updateNotification("Throttle level changed");
+    }
 
-        updateNotification("Received location update");
+    private void logPowerStateTimes() {
+        long now = SystemClock.elapsedRealtime();
+        Log.i(TAG, "GNSS time moving: " + motionPolicy.getTimeInState(MotionPolicy.State.MOVING, now) / 1000 +
+                "s, stationary: " + motionPolicy.getTimeInState(MotionPolicy.State.STATIONARY, now) / 1000 + "s");
+    }
 
-        // Broadcast to all connected clients
-        Log.d(TAG, "Broadcasting location to " + connectedClients.size() + " clients: " + location);
-        executor.execute(() -> broadcastLocationUpdate(lastServerResponse.build()));
+    /** Applies changed location settings to the running location updates. */
+    public static void onLocationSettingsChanged() {
+        GNSSServerService service = instance;
+        if (service != null) {
+            service.mainHandler.post(service::onSubscriptionsChanged);
+        }
     }
 
-    private void broadcastLocationUpdate(LocationProto.ServerResponse serverResponse) {
-        // Copy clients list to avoid concurrent modification
-        ArrayList<ClientHandler> clients;
-        synchronized (connectedClients) {
-            clients = new ArrayList<>(connectedClients);
+    private ResponseFrame getResponseFrame(int fieldMask) {
+        ServerState current = state.get();
+        ResponseFrame frame = current.getFullFrame(fieldMask);
+        if (frame == null) {
+            synchronized (responseEncoder) {
+                frame = responseEncoder.encode(current.getStatus(), current.getSatellites(),
+                        current.getLocation(), current.getLocationAge(), current.isLocationCached(), fieldMask,
+                        ServerEventLoop.LIVENESS_TIMEOUT_MS, current.getSequence(responseSequence),
+                        current.getThrottleLevel().getNumber(), sessionId);
+            }
+            current.putFullFrame(fieldMask, frame);
         }
-        for (ClientHandler client : clients) {
-            client.sendResponse(serverResponse);
+        return frame;
+    }
+
+    /** Full frame with the fields the client asked for. */
+    private ResponseFrame getResponseFrame(ClientConnection client) {
+        // Multicast datagrams are shared, so they can't leave out anybody's fields
+        return getResponseFrame(client.getMulticastInterface() != null
+                ? LocationProto.LocationField.ALL_FIELDS_VALUE : client.getFieldMask());
+    }
+
+    /** Full frame without the fix, for batching clients. */
+    private ResponseFrame getStatusFrame() {
+        ServerState current = state.get();
+        ResponseFrame frame = current.statusFrame;
+        if (frame == null) {
+            synchronized (responseEncoder) {
+                frame = responseEncoder.encode(current.getStatus(), current.getSatellites(), null, 0, false,
+                        LocationProto.LocationField.ALL_FIELDS_VALUE, ServerEventLoop.LIVENESS_TIMEOUT_MS,
+                        current.getSequence(responseSequence), current.getThrottleLevel().getNumber(), sessionId);
+            }
+            current.statusFrame = frame;
         }
+        return frame;
     }
 
-    private void onClientDisconnected(ClientHandler client) {
-        synchronized (connectedClients) {
-            boolean wasRemoved = connectedClients.remove(client);
-            if (wasRemoved) {
-                Log.d(TAG, "Client removed: " + client.getClientAddress() +
-                        ". Remaining clients: " + connectedClients.size());
+    private ResponseFrame getCompactFrame() {
+        ServerState current = state.get();
+        ResponseFrame frame = current.compactFrame;
+        if (frame != null) {
+            return frame;
+        }
+        // The encoder keeps state, encoding a snapshot twice would turn its delta into a no-change frame
+        synchronized (compactEncoder) {
+            frame = current.compactFrame;
+            if (frame == null) {
+                frame = compactEncoder.encode(current.toResponse(ServerEventLoop.LIVENESS_TIMEOUT_MS, sessionId),
+                        () -> current.getSequence(responseSequence));
+                current.compactFrame = frame;
+            }
+        }
+        return frame;
+    }
 
-                if (running && connectedClients.isEmpty()) {
-                    Log.d(TAG, "No clients remaining, scheduling stopping of location updates in 15 seconds");
-                    mainHandler.removeCallbacks(this.stopLocationUpdates);
-                    mainHandler.postDelayed(this.stopLocationUpdates, 15000);
+    /**
+     * Sends the current state to every client.
+     *
+     * @param newFix whether the state carries a new fix, which clients asking for a lower rate skip
+     * @return whether anything was sent
+     */
+    private boolean broadcastResponse(boolean newFix) {
+        // Sending only queues the response for the server loop, so this never blocks on a slow client
+        // Each stream is encoded only if somebody receives it
+        ResponseFrame compactFrame = null;
+        ArrayList<NetworkInterface> multicastInterfaces = null;
+        ArrayList<NetworkInterface> compactMulticastInterfaces = null;
+        long now = SystemClock.elapsedRealtime();
+        boolean sent = false;
+        for (ClientConnection client : connectedClients) {
+            if (client.getBatchIntervalMs() > 0) {
+                // Fixes go out in batches, everything else as status frames
+                if (!newFix) {
+                    sendFrame(client, getStatusFrame());
+                    sent = true;
                 }
+                continue;
+            }
+
+            boolean compact = client.isCompactStream();
+            NetworkInterface multicastInterface = client.getMulticastInterface();
+            ResponseFrame frame;
+            if (compact) {
+                frame = compactFrame != null ? compactFrame : (compactFrame = getCompactFrame());
             } else {
-                Log.d(TAG, "Client was already removed: " + client.getClientAddress());
+                frame = getResponseFrame(client);
             }
+
+            // Keyframes of the compact stream are never skipped, the following frames depend on them
+            if (newFix && multicastInterface == null && frame.isReplaceable() && !client.takeFixIfDue(now)) {
+                continue;
+            }
+
+            if (multicastInterface != null) {
+                // One datagram per interface and stream serves every multicast client on it
+                ArrayList<NetworkInterface> sentInterfaces;
+                if (compact) {
+                    if (compactMulticastInterfaces == null) {
+                        compactMulticastInterfaces = new ArrayList<>(1);
+                    }
+                    sentInterfaces = compactMulticastInterfaces;
+                } else {
+                    if (multicastInterfaces == null) {
+                        multicastInterfaces = new ArrayList<>(1);
+                    }
+                    sentInterfaces = multicastInterfaces;
+                }
+                if (!sentInterfaces.contains(multicastInterface)) {
+                    sentInterfaces.add(multicastInterface);
+                    datagramSender.sendMulticast(frame, multicastInterface, compact);
+                }
+                client.onDatagramSent();
+            } else {
+                sendFrame(client, frame);
+            }
+            sent = true;
+        }
+        return sent;
+    }
+
+    /** Sends the frame over the transport the client asked for. */
+    private void sendFrame(ClientConnection client, ResponseFrame frame) {
+        NetworkInterface multicastInterface = client.getMulticastInterface();
+        InetSocketAddress datagramTarget = client.getDatagramTarget();
+        if (multicastInterface != null) {
+            datagramSender.sendMulticast(frame, multicastInterface, client.isCompactStream());
+            client.onDatagramSent();
+        } else if (datagramTarget != null) {
+            datagramSender.send(frame, datagramTarget);
+            client.onDatagramSent();
+        } else {
+            client.sendResponse(frame);
+        }
+    }
+
+    @Override
+    public void onClientRequest(ClientConnection client, LocationProto.ClientRequest request) {
+        String stream = client.getBatchIntervalMs() > 0 ? "location batches every " + client.getBatchIntervalMs() + "ms"
+                : client.isCompactStream() ? "compact stream" : "location";
+        if (client.getMulticastInterface() != null) {
+            Log.i(TAG, "Client " + client.getClientAddress() + " receives " + stream + " via multicast on " +
+                    client.getMulticastInterface().getName());
+        } else if (client.getDatagramTarget() != null) {
+            Log.i(TAG, "Client " + client.getClientAddress() + " receives " + stream + " via UDP at " +
+                    client.getDatagramTarget());
+        } else {
+            Log.i(TAG, "Client " + client.getClientAddress() + " receives " + stream + " via TCP");
+        }
+
+        if (request.getBackfillSec() > 0) {
+            sendBackfill(client, Math.min(request.getBackfillSec(), FixHistory.MAX_AGE_SEC));
+        }
+
+        // A client that reconnected within this session may already have the latest state
+        boolean resumed = request.getResumeSessionId() == sessionId;
+        boolean upToDate = resumed && request.getResumeSequence() >= state.get().getSequence(responseSequence);
+        if (resumed) {
+            Log.i(TAG, "Client " + client.getClientAddress() + " resumed session at sequence " +
+                    request.getResumeSequence() + (upToDate ? ", up to date" : ""));
+        }
+
+        if (client.getBatchIntervalMs() > 0) {
+            if (!upToDate) {
+                sendFrame(client, getStatusFrame());
+            }
+        } else if (client.isCompactStream()) {
+            // The client can't decode anything until it has the keyframe; repeated requests
+            // come from clients that lost it
+            getCompactFrame();
+            ResponseFrame[] frames = resumed ? compactEncoder.getResumeFrames(request.getResumeSequence())
+                    : compactEncoder.getResyncFrames();
+            for (ResponseFrame frame : frames) {
+                sendFrame(client, frame);
+            }
+        } else if (!upToDate && (client.getMulticastInterface() != null || client.getDatagramTarget() != null)) {
+            // Don't make the client wait for the next fix to see its first datagram
+            sendFrame(client, getResponseFrame(client));
+        }
+
+        mainHandler.post(this::onSubscriptionsChanged);
+    }
+
+    /**
+     * Sends the recent fixes over TCP, they don't fit into a datagram. An empty backfill is sent
+     * too, the client holds its live fixes until it knows there is nothing to replay.
+     */
+    private void sendBackfill(ClientConnection client, int seconds) {
+        long since = SystemClock.elapsedRealtimeNanos() - seconds * 1_000_000_000L;
+        LocationProto.LocationUpdateBatch backfill = fixHistory.getSince(since);
+        Log.d(TAG, "Backfill of " + backfill.getLocationsCount() + " fixes for " + client.getClientAddress());
+        client.sendResponse(ResponseFrame.encodeNonReplaceable(LocationProto.ServerResponse.newBuilder()
+                .setLocationBackfill(backfill)
+                .build()));
+    }
+
+    @Override
+    public void onClientDisconnected(ClientConnection client) {
+        boolean wasRemoved = connectedClients.remove(client);
+        if (wasRemoved) {
+            int remaining = connectedClients.size();
+            Log.d(TAG, "Client removed: " + client.getClientAddress() +
+                    " (dropped frames: " + client.getDroppedFrames() +
+                    ", unacknowledged batches: " + client.getUnackedBatches() + ")" +
+                    ". Remaining clients: " + remaining);
+
+            if (remaining > 0) {
+                mainHandler.post(this::onSubscriptionsChanged);
+            } else if (running) {
+                mainHandler.post(this::scheduleStopLocationUpdates);
+            }
+        } else {
+            Log.d(TAG, "Client was already removed: " + client.getClientAddress());
         }
 
         // Evaluate auto-stop (will schedule only if both BT and clients are gone)
         evaluateAutoStop();
 
-        mainHandler.post(() -> updateNotification("Client disconnected"));
+        updateNotification("Client disconnected");
+    }
+
+    /** Keeps GNSS running for a while after the last client left, it may come right back. */
+    private void scheduleStopLocationUpdates() {
+        if (!connectedClients.isEmpty()) {
+            return;
+        }
+        keepWarmPolicy.setBaseWindowMs(Preferences.keepWarmSec(this) * 1000L);
+        long delay = keepWarmPolicy.onLastClientLeft(SystemClock.elapsedRealtime());
+        Log.d(TAG, "No clients remaining, scheduling stopping of location updates in " + delay + "ms");
+        mainHandler.removeCallbacks(this.stopLocationUpdates);
+        mainHandler.postDelayed(this.stopLocationUpdates, delay);
     }
 
     public static boolean isServiceRunning() {
@@ -456,24 +1050,27 @@ public class GNSSServerService extends Service {
         }
     }
 
-    private Notification createNotification() {
-        Intent intent = new Intent(this, MainActivity.class);
-        PendingIntent pendingIntent = PendingIntent.getActivity(
-                this, 0, intent, PendingIntent.FLAG_UPDATE_CURRENT | PendingIntent.FLAG_IMMUTABLE);
+    private final NotificationGovernor.Renderer notificationRenderer = new NotificationGovernor.Renderer() {
+        @Override
+        public CharSequence getTitle() {
+            return String.format(getString(serverStartError == null ? R.string.notification_title : R.string.notification_failed_title), getString(R.string.app_name));
+        }
 
-        String content;
-        if (serverStartError == null) {
-            synchronized (connectedClients) {
-                Log.d(TAG, String.format("Clients connected: %d", connectedClients.size()));
-                if (connectedClients.isEmpty()) {
-                    Log.d(TAG, "No clients connected");
-                    content = getString(R.string.notification_no_clients);
-                } else {
-                    content = String.format(
-                            getString(R.string.notification_clients),
-                            connectedClients.size()
-                    );
-                }
+        @Override
+        public CharSequence getText() {
+            if (serverStartError != null) {
+                return serverStartError;
+            }
+
+            String content;
+            int clientCount = connectedClients.size();
+            if (clientCount == 0) {
+                content = getString(R.string.notification_no_clients);
+            } else {
+                content = String.format(
+                        getString(R.string.notification_clients),
+                        clientCount
+                );
             }
 
             content += getString(R.string.notification_divider);
@@ -485,41 +1082,65 @@ public class GNSSServerService extends Service {
                 );
 
 
-                if (lastServerResponse.hasLocationUpdate()) {
+                Location location = state.get().getLocation();
+                if (location != null) {
                     content += getString(R.string.notification_divider) + String.format(
                             getString(R.string.notification_age),
-                            (System.currentTimeMillis() - lastServerResponse.getLocationUpdate().getTimestamp()) / 1000.0
+                            getLocationAge(location, SystemClock.elapsedRealtimeNanos())
+                    );
+                    content += getString(R.string.notification_divider) + String.format(
+                            getString(R.string.notification_rate),
+                            fixInputRate.getRate()
+                    );
+                }
+
+                LocationProto.ThrottleLevel throttleLevel = state.get().getThrottleLevel();
+                if (throttleLevel != LocationProto.ThrottleLevel.THROTTLE_NONE) {
+                    content += getString(R.string.notification_divider) + String.format(
+                            getString(R.string.notification_throttled),
+                            throttleLevel.getNumber()
                     );
                 }
             } else {
                 content += getString(R.string.notification_gnss_inactive);
             }
-        } else {
-            content = serverStartError;
+            return content;
         }
 
-        // Stop action for notification shade
-        Intent stopIntent = new Intent("dezz.gnssshare.server.STOP");
-        stopIntent.setPackage(getPackageName());
-        PendingIntent stopPendingIntent = PendingIntent.getBroadcast(
-                this, 1, stopIntent, PendingIntent.FLAG_UPDATE_CURRENT | PendingIntent.FLAG_IMMUTABLE);
+        @Override
+        public Notification build(CharSequence title, CharSequence text) {
+            // Intents and actions never change, so the builder is created once
+            if (notificationBuilder == null) {
+                Intent intent = new Intent(GNSSServerService.this, MainActivity.class);
+                PendingIntent pendingIntent = PendingIntent.getActivity(
+                        GNSSServerService.this, 0, intent, PendingIntent.FLAG_UPDATE_CURRENT | PendingIntent.FLAG_IMMUTABLE);
+
+                // Stop action for notification shade
+                Intent stopIntent = new Intent("dezz.gnssshare.server.STOP");
+                stopIntent.setPackage(getPackageName());
+                PendingIntent stopPendingIntent = PendingIntent.getBroadcast(
+                        GNSSServerService.this, 1, stopIntent, PendingIntent.FLAG_UPDATE_CURRENT | PendingIntent.FLAG_IMMUTABLE);
+
+                notificationBuilder = new NotificationCompat.Builder(GNSSServerService.this, CHANNEL_ID)
+                        .setSmallIcon(android.R.drawable.ic_menu_mylocation)
+                        .setContentIntent(pendingIntent)
+                        .addAction(android.R.drawable.ic_media_pause, getString(R.string.disable_service), stopPendingIntent)
+                        .setOngoing(true);
+            }
 
-        return new NotificationCompat.Builder(this, CHANNEL_ID)
-                .setContentTitle(String.format(getString(serverStartError == null ? R.string.notification_title : R.string.notification_failed_title), getString(R.string.app_name)))
-                .setContentText(content)
-                .setSmallIcon(android.R.drawable.ic_menu_mylocation)
-                .setContentIntent(pendingIntent)
-                .addAction(android.R.drawable.ic_media_pause, getString(R.string.disable_service), stopPendingIntent)
-                .setOngoing(true)
-                .build();
-    }
+            return notificationBuilder
+                    .setContentTitle(title)
+                    .setContentText(text)
+                    .build();
+        }
+    };
 
     private void updateNotification(String reason) {
-        if (notificationManager == null) {
+        if (notificationGovernor == null) {
             return;
         }
-        Log.d(TAG, "Updating notification: " + reason);
-        notificationManager.notify(NOTIFICATION_ID, createNotification());
+        Log.v(TAG, "Notification dirty: " + reason);
+        notificationGovernor.markDirty();
     }
 
     public int getSatelliteCount() {
@@ -570,10 +1191,7 @@ public class GNSSServerService extends Service {
         }
 
         boolean btGone = BluetoothReceiver.allTriggerDevicesDisconnected();
-        boolean clientsGone;
-        synchronized (connectedClients) {
-            clientsGone = connectedClients.isEmpty();
-        }
+        boolean clientsGone = connectedClients.isEmpty();
 
         if (btGone && clientsGone) {
             Log.d(TAG, "All BT devices and clients disconnected, scheduling auto-stop in " + BT_AUTO_STOP_DELAY_MS + "ms");
@@ -592,10 +1210,7 @@ public class GNSSServerService extends Service {
     private void btAutoStopService() {
         // Safety net: re-check conditions before stopping
         boolean btGone = BluetoothReceiver.allTriggerDevicesDisconnected();
-        boolean clientsGone;
-        synchronized (connectedClients) {
-            clientsGone = connectedClients.isEmpty();
-        }
+        boolean clientsGone = connectedClients.isEmpty();
         if (!btGone || !clientsGone) {
             Log.i(TAG, "Bluetooth auto-stop skipped (BT connected: " + !btGone + ", clients connected: " + !clientsGone + ")");
             return;
@@ -604,126 +1219,4 @@ public class GNSSServerService extends Service {
         setServiceEnabled(this, false);
         stopSelf();
     }
-
-    private class ClientHandler implements Runnable {
-        private static final long HEARTBEAT_TIMEOUT = 3000;
-        private static final byte HEARTBEAT_PACKET = 0x01; // Expected heartbeat packet
-        private static final long RESPONSE_TIMING_REQUIREMENT = 1000;
-
-        private final Socket socket;
-        private final String clientAddress;
-        private long lastHeartbeatTime;
-        private long lastResponseTime = 0;
-
-        public ClientHandler(Socket socket) {
-            this.socket = socket;
-            this.clientAddress = socket.getRemoteSocketAddress().toString();
-            this.lastHeartbeatTime = System.currentTimeMillis();
-
-            Log.i(TAG, "New client connected: " + clientAddress);
-        }
-
-        public String getClientAddress() {
-            return clientAddress;
-        }
-
-        @Override
-        public void run() {
-            try {
-                // Set socket timeout for heartbeat detection
-                socket.setSoTimeout(1000); // timeout for reads
-                sendResponse(lastServerResponse.build());
-
-                // Keep connection alive and handle request packets
-                byte[] buffer = new byte[1];
-                while (!socket.isClosed()) {
-                    try {
-                        // Try to read request packet
-                        int result = socket.getInputStream().read(buffer);
-                        if (socket.isClosed()) {
-                            Log.i(TAG, "Client closed connection: " + clientAddress);
-                            break;
-                        }
-                        if (result > 0) {
-                            // Received data from client
-                            if (buffer[0] == HEARTBEAT_PACKET) {
-                                // Valid heartbeat packet received
-                                lastHeartbeatTime = System.currentTimeMillis();
-                                Log.v(TAG, "Heartbeat received from: " + clientAddress);
-
-                                // Send response if last response was sent more than RESPONSE_TIMING_REQUIREMENT ago
-                                // so the client will be sure that the server is still alive
-                                if (lastResponseTime < lastHeartbeatTime - RESPONSE_TIMING_REQUIREMENT ||
-                                        !lastServerResponse.hasLocationUpdate()) {
-                                    sendResponse(lastServerResponse.build());
-                                }
-                                continue;
-                            } else {
-                                Log.w(TAG, "Unknown packet received from client: " + buffer[0]);
-                            }
-                        }
-                    } catch (java.net.SocketTimeoutException e) {
-                        // Heartbeat timeout will be processed after this block
-                    } catch (IOException e) {
-                        Log.i(TAG, "Client disconnected: " + clientAddress + " - " + e.getMessage());
-                        break;
-                    }
-
-                    // Check if heartbeat timeout exceeded
-                    // This will be processed after the timeout exception as well as after receiving
-                    // an unknown packet
-                    long timeSinceLastHeartbeat = System.currentTimeMillis() - lastHeartbeatTime;
-                    if (timeSinceLastHeartbeat > HEARTBEAT_TIMEOUT) {
-                        Log.w(TAG, "Heartbeat timeout for client: " + clientAddress +
-                                " (last heartbeat " + timeSinceLastHeartbeat + "ms ago)");
-                        break;
-                    }
-                }
-            } catch (Exception e) {
-                Log.e(TAG, "Error in client handler for " + clientAddress, e);
-            } finally {
-                disconnect();
-            }
-        }
-
-        private void sendResponse(LocationProto.ServerResponse response) {
-            if (socket.isClosed()) {
-                return;
-            }
-            try {
-                byte[] data = response.toByteArray();
-                // Send length first (4 bytes) then data
-                OutputStream output = socket.getOutputStream();
-                output.write(intToBytes(data.length));
-                output.write(data);
-                output.flush();
-
-                Log.v(TAG, "Response sent to: " + clientAddress);
-
-                lastResponseTime = System.currentTimeMillis();
-            } catch (IOException e) {
-                Log.w(TAG, "Error sending location update to client", e);
-                disconnect();
-            }
-        }
-
-        public void disconnect() {
-            try {
-                socket.close();
-            } catch (IOException e) {
-                Log.e(TAG, "Error closing client socket", e);
-            }
-
-            onClientDisconnected(this);
-        }
-
-        private byte[] intToBytes(int value) {
-            return new byte[]{
-                    (byte) (value >>> 24),
-                    (byte) (value >>> 16),
-                    (byte) (value >>> 8),
-                    (byte) value
-            };
-        }
-    }
-}
\ No newline at end of file
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright © 2025-2026 Dezz (https://github.com/DezzK)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package dezz.gnssshare.server;
+
+/**
+ * Decides how long GNSS keeps running after the last client left. Every restart costs seconds
+ * without a fix, so a client that comes back after a short Wi-Fi drop should find GNSS running.
+ * <p>
+ * The window starts at the configured base. It doubles, up to {@link #MAX_WINDOW_MS}, whenever a
+ * client comes back soon after GNSS was stopped, and halves back towards the base whenever a
+ * client comes back only after a long absence. Used on the main thread only.
+ */
+public class KeepWarmPolicy {
+    public static final long MAX_WINDOW_MS = 120000;
+    // A return within this many windows after the last client left counts as a short drop
+    private static final int SHORT_ABSENCE_WINDOWS = 2;
+    // A return after this many windows counts as a long absence
+    private static final int LONG_ABSENCE_WINDOWS = 8;
+
+    private long baseWindowMs;
+    private long windowMs;
+    private long lastClientLeftTime = 0;
+    private boolean stoppedSinceLeft = false;
+
+    public KeepWarmPolicy(long baseWindowMs) {
+        this.baseWindowMs = baseWindowMs;
+        this.windowMs = baseWindowMs;
+    }
+
+    /**
+     * Changes the configured window. Raising it keeps a longer adapted window, lowering it drops
+     * the adapted window to the new base, since the user asked for shorter ones.
+     */
+    public void setBaseWindowMs(long baseWindowMs) {
+        if (baseWindowMs < this.baseWindowMs) {
+            windowMs = baseWindowMs;
+        } else {
+            windowMs = Math.max(windowMs, baseWindowMs);
+        }
+        this.baseWindowMs = baseWindowMs;
+    }
+
+    /** Current window, it may have grown above the base. */
+    public long getWindowMs() {
+        return windowMs;
+    }
+
+    /**
+     * The last client left.
+     *
+     * @return how long to keep GNSS running
+     */
+    public long onLastClientLeft(long now) {
+        lastClientLeftTime = now;
+        stoppedSinceLeft = false;
+        return windowMs;
+    }
+
+    /** GNSS was stopped after the window expired. */
+    public void onStopped() {
+        stoppedSinceLeft = true;
+    }
+
+    /** A client connected while there were no others. */
+    public void onFirstClientConnected(long now) {
+        if (lastClientLeftTime == 0) {
+            return;
+        }
+        long absence = now - lastClientLeftTime;
+        lastClientLeftTime = 0;
+
+        if (stoppedSinceLeft && absence < windowMs * SHORT_ABSENCE_WINDOWS) {
+            // Missed it by little, a longer window would have saved the restart
+            windowMs = Math.max(baseWindowMs, Math.min(MAX_WINDOW_MS, windowMs * 2));
+        } else if (absence > windowMs * LONG_ABSENCE_WINDOWS) {
+            windowMs = Math.max(baseWindowMs, windowMs / 2);
+        }
+    }
+}
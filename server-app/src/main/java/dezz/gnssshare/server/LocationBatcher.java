@@ -0,0 +1,90 @@
+/*
+ * Copyright © 2025-2026 Dezz (https://github.com/DezzK)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package dezz.gnssshare.server;
+
+import android.location.Location;
+
+import java.util.ArrayList;
+
+import dezz.gnssshare.proto.LocationProto;
+
+/**
+ * Collects fixes for clients in batched delivery mode and encodes them into one
+ * {@link LocationProto.LocationUpdateBatch} frame shared by all of them.
+ * <p>
+ * Not thread-safe, owned by the thread that receives fixes.
+ */
+public class LocationBatcher {
+    // Keeps a batch well below the client's 64 KiB frame limit, about 70 bytes per fix
+    public static final int MAX_BATCH_SIZE = 500;
+
+    private final ArrayList<LocationProto.LocationUpdate> pending = new ArrayList<>();
+    private long lastBatchId = 0;
+
+    public boolean isEmpty() {
+        return pending.isEmpty();
+    }
+
+    public boolean isFull() {
+        return pending.size() >= MAX_BATCH_SIZE;
+    }
+
+    /**
+     * Adds a fix to the next batch.
+     *
+     * @param locationAge seconds between the fix and its arrival on the server
+     */
+    public void add(Location location, float locationAge) {
+        pending.add(ServerState.toLocationUpdate(location, locationAge));
+    }
+
+    public void clear() {
+        pending.clear();
+    }
+
+    /** Id of the batch most recently returned by {@link #flush}. */
+    public long getLastBatchId() {
+        return lastBatchId;
+    }
+
+    /**
+     * Encodes the collected fixes together with the current status and starts a new batch.
+     *
+     * @return the frame, or null if there are no fixes
+     */
+    public ResponseFrame flush(ServerState state, int livenessTimeoutMs, long sessionId) {
+        if (pending.isEmpty()) {
+            return null;
+        }
+
+        LocationProto.LocationUpdateBatch batch = LocationProto.LocationUpdateBatch.newBuilder()
+                .setBatchId(++lastBatchId)
+                .addAllLocations(pending)
+                .build();
+        pending.clear();
+
+        return ResponseFrame.encodeNonReplaceable(LocationProto.ServerResponse.newBuilder()
+                .setStatus(state.getStatus())
+                .setSatellites(state.getSatellites())
+                .setLivenessTimeoutMs(livenessTimeoutMs)
+                .setThrottleLevel(state.getThrottleLevel())
+                .setSessionId(sessionId)
+                .setLocationBatch(batch)
+                .build());
+    }
+}
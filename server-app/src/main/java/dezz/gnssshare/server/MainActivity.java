@@ -29,9 +29,12 @@ import android.os.Bundle;
 import android.os.Handler;
 import android.os.Looper;
 import android.provider.Settings;
+import android.text.Editable;
+import android.text.TextWatcher;
 import android.util.Log;
 import android.view.View;
 import android.widget.Button;
+import android.widget.EditText;
 import android.widget.Switch;
 import android.widget.TextView;
 import android.widget.Toast;
@@ -96,6 +99,7 @@ public class MainActivity extends AppCompatActivity {
     private Switch bluetoothAutoStartSwitch;
     private Button addBluetoothDeviceButton;
     private LinearLayout bluetoothDeviceList;
+    private LinearLayout bluetoothPrewarmRow;
     private Switch fusedLocationSwitch;
     private TextView fusedLocationInfo;
 
@@ -216,6 +220,7 @@ public class MainActivity extends AppCompatActivity {
         bluetoothAutoStartSwitch = findViewById(R.id.bluetoothAutoStartSwitch);
         addBluetoothDeviceButton = findViewById(R.id.addBluetoothDeviceButton);
         bluetoothDeviceList = findViewById(R.id.bluetoothDeviceList);
+        bluetoothPrewarmRow = findViewById(R.id.bluetoothPrewarmRow);
 
         TextView header = findViewById(R.id.header);
         final String appVersion = VersionGetter.getAppVersionName(this);
@@ -234,6 +239,12 @@ public class MainActivity extends AppCompatActivity {
 
         addBluetoothDeviceButton.setOnClickListener(v -> showBluetoothDevicePicker());
 
+        Switch bluetoothPrewarmSwitch = findViewById(R.id.bluetoothPrewarmSwitch);
+        bluetoothPrewarmSwitch.setChecked(Preferences.bluetoothPrewarmEnabled(this));
+        bluetoothPrewarmSwitch.setOnCheckedChangeListener((buttonView, isChecked) -> {
+            Preferences.setBluetoothPrewarmEnabled(this, isChecked);
+        });
+
         // Collapsible instructions
         View instructionsHeader = findViewById(R.id.instructionsHeader);
         TextView instructionsText = findViewById(R.id.instructionsText);
@@ -252,6 +263,44 @@ public class MainActivity extends AppCompatActivity {
             Preferences.setFusedLocationEnabled(this, isChecked);
         });
 
+        // High-rate mode, applied to running location updates right away
+        Switch highRateSwitch = findViewById(R.id.highRateSwitch);
+        highRateSwitch.setChecked(Preferences.highRateEnabled(this));
+        highRateSwitch.setOnCheckedChangeListener((buttonView, isChecked) -> {
+            Preferences.setHighRateEnabled(this, isChecked);
+            GNSSServerService.onLocationSettingsChanged();
+        });
+
+        // Adaptive power, applied to running location updates right away
+        Switch adaptivePowerSwitch = findViewById(R.id.adaptivePowerSwitch);
+        adaptivePowerSwitch.setChecked(Preferences.adaptivePowerEnabled(this));
+        adaptivePowerSwitch.setOnCheckedChangeListener((buttonView, isChecked) -> {
+            Preferences.setAdaptivePowerEnabled(this, isChecked);
+            GNSSServerService.onLocationSettingsChanged();
+        });
+
+        // Keep-warm time, read when the last client disconnects
+        EditText keepWarmEdit = findViewById(R.id.keepWarmEdit);
+        keepWarmEdit.setText(String.valueOf(Preferences.keepWarmSec(this)));
+        keepWarmEdit.addTextChangedListener(new TextWatcher() {
+            @Override
+            public void afterTextChanged(Editable s) {
+                try {
+                    Preferences.setKeepWarmSec(MainActivity.this, Integer.parseInt(s.toString()));
+                } catch (NumberFormatException e) {
+                    Preferences.setKeepWarmSec(MainActivity.this, Preferences.DEFAULT_KEEP_WARM_SEC);
+                }
+            }
+
+            @Override
+            public void beforeTextChanged(CharSequence s, int start, int count, int after) {
+            }
+
+            @Override
+            public void onTextChanged(CharSequence s, int start, int before, int count) {
+            }
+        });
+
         // Initialize settings UI
         updateBluetoothSettingsUI();
         updateFusedLocationSettingsUI();
@@ -503,6 +552,7 @@ public class MainActivity extends AppCompatActivity {
         int visibility = enabled ? View.VISIBLE : View.GONE;
         addBluetoothDeviceButton.setVisibility(visibility);
         bluetoothDeviceList.setVisibility(visibility);
+        bluetoothPrewarmRow.setVisibility(visibility);
     }
 
     private void updateBluetoothDeviceList() {
@@ -0,0 +1,115 @@
+/*
+ * Copyright © 2025-2026 Dezz (https://github.com/DezzK)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package dezz.gnssshare.server;
+
+import android.location.Location;
+
+/**
+ * Decides from recent fixes whether the phone is parked, so GNSS can run at a lower rate and
+ * priority until it moves again, and counts the time spent in each state.
+ * <p>
+ * The phone counts as stationary only after every fix stayed slow and close to the same spot for
+ * a while; a single fast fix or a jump away from that spot switches back right away.
+ * Time comes from {@link android.os.SystemClock#elapsedRealtime()}.
+ */
+public class MotionPolicy {
+    public enum State {
+        MOVING,
+        STATIONARY,
+    }
+
+    // Same threshold the client uses to detect a standing car
+    public static final float STATIC_SPEED_THRESHOLD = 0.5f; // m/s
+    private static final long STATIONARY_DELAY_MS = 60000;
+    // Drift of a parked phone's fixes stays well within this, unless accuracy is worse
+    private static final float MOVE_DISTANCE_M = 30;
+
+    private State state = State.MOVING;
+    private long stateSince = 0; // 0 while GNSS is off, nothing is counted then
+    private final long[] timeInState = new long[State.values().length];
+
+    private long slowSince = 0;
+    private Location anchor = null;
+
+    /** GNSS started, always at full rate. */
+    public synchronized void start(long now) {
+        stop(now);
+        state = State.MOVING;
+        stateSince = now;
+        slowSince = 0;
+        anchor = null;
+    }
+
+    /** GNSS stopped, time stops counting until the next start. */
+    public synchronized void stop(long now) {
+        if (stateSince != 0) {
+            timeInState[state.ordinal()] += now - stateSince;
+            stateSince = 0;
+        }
+    }
+
+    /**
+     * Feeds a fix. Fix objects are never modified after delivery, so it's kept as is.
+     *
+     * @return whether the state changed
+     */
+    public synchronized boolean onFix(Location location, long now) {
+        boolean moved = anchor != null
+                && anchor.distanceTo(location) > Math.max(MOVE_DISTANCE_M, 2 * location.getAccuracy());
+        boolean slow = !moved && (!location.hasSpeed() || location.getSpeed() < STATIC_SPEED_THRESHOLD);
+        if (!slow) {
+            slowSince = 0;
+            anchor = null;
+            return setState(State.MOVING, now);
+        }
+
+        if (slowSince == 0) {
+            slowSince = now;
+            anchor = location;
+        }
+        if (state == State.MOVING && now - slowSince >= STATIONARY_DELAY_MS) {
+            return setState(State.STATIONARY, now);
+        }
+        return false;
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+
+    /** Total time GNSS spent in the state, including the current period. */
+    public synchronized long getTimeInState(State s, long now) {
+        long time = timeInState[s.ordinal()];
+        if (s == state && stateSince != 0) {
+            time += now - stateSince;
+        }
+        return time;
+    }
+
+    private boolean setState(State newState, long now) {
+        if (newState == state) {
+            return false;
+        }
+        if (stateSince != 0) {
+            timeInState[state.ordinal()] += now - stateSince;
+            stateSince = now;
+        }
+        state = newState;
+        return true;
+    }
+}
@@ -0,0 +1,209 @@
+/*
+ * Copyright © 2025-2026 Dezz (https://github.com/DezzK)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package dezz.gnssshare.server;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.BatteryManager;
+import android.os.Build;
+import android.os.PowerManager;
+import android.util.Log;
+
+import androidx.core.content.ContextCompat;
+
+import dezz.gnssshare.proto.LocationProto;
+
+/**
+ * Turns the device's thermal status and battery state into a {@link LocationProto.ThrottleLevel}.
+ * A phone on a sunny windshield gets throttled as a whole and then loses fixes entirely, so the
+ * server steps its own load down before that happens.
+ * <p>
+ * Thermal status needs Android 10+, older devices are governed by the battery only. The listener
+ * is called on the main thread.
+ */
+public class PowerGovernor {
+    private static final String TAG = "PowerGovernor";
+
+    // Battery percentages below which a discharging phone is throttled
+    private static final int LOW_BATTERY_PERCENT = 15;
+    private static final int CRITICAL_BATTERY_PERCENT = 5;
+
+    public interface Listener {
+        void onThrottleLevelChanged(LocationProto.ThrottleLevel level);
+    }
+
+    private final Context context;
+    private final Listener listener;
+    private final PowerManager powerManager;
+    private final PowerManager.OnThermalStatusChangedListener thermalListener;
+
+    private int thermalStatus = 0; // PowerManager.THERMAL_STATUS_NONE
+    private int batteryPercent = 100;
+    private boolean charging = true;
+    private boolean powerSaveMode = false;
+    private LocationProto.ThrottleLevel level = LocationProto.ThrottleLevel.THROTTLE_NONE;
+    private boolean started = false;
+
+    private final BroadcastReceiver receiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            if (Intent.ACTION_BATTERY_CHANGED.equals(intent.getAction())) {
+                onBatteryChanged(intent);
+            } else if (powerManager != null) {
+                powerSaveMode = powerManager.isPowerSaveMode();
+            }
+            update();
+        }
+    };
+
+    public PowerGovernor(Context context, Listener listener) {
+        this.context = context;
+        this.listener = listener;
+        this.powerManager = context.getSystemService(PowerManager.class);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+            thermalListener = status -> {
+                thermalStatus = status;
+                update();
+            };
+        } else {
+            thermalListener = null;
+        }
+    }
+
+    /** Starts watching, must be called on the main thread. */
+    public void start() {
+        if (started) {
+            return;
+        }
+        started = true;
+
+        IntentFilter filter = new IntentFilter(Intent.ACTION_BATTERY_CHANGED);
+        filter.addAction(PowerManager.ACTION_POWER_SAVE_MODE_CHANGED);
+        // Battery broadcasts are sticky, so the current state comes right back
+        Intent battery = ContextCompat.registerReceiver(context, receiver, filter, ContextCompat.RECEIVER_NOT_EXPORTED);
+        if (battery != null) {
+            onBatteryChanged(battery);
+        }
+        if (powerManager != null) {
+            powerSaveMode = powerManager.isPowerSaveMode();
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+                thermalStatus = powerManager.getCurrentThermalStatus();
+                powerManager.addThermalStatusListener(context.getMainExecutor(), thermalListener);
+            }
+        }
+        update();
+    }
+
+    public void stop() {
+        if (!started) {
+            return;
+        }
+        started = false;
+
+        context.unregisterReceiver(receiver);
+        if (powerManager != null && Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+            powerManager.removeThermalStatusListener(thermalListener);
+        }
+    }
+
+    public LocationProto.ThrottleLevel getLevel() {
+        return level;
+    }
+
+    /** Shortest time between fixes the level allows GNSS and clients to get, 0 for no limit. */
+    public static int getMinUpdateIntervalMs(LocationProto.ThrottleLevel level) {
+        switch (level) {
+            case THROTTLE_LIGHT:
+                return 1000;
+            case THROTTLE_MODERATE:
+                return 2000;
+            case THROTTLE_SEVERE:
+                return 5000;
+            default:
+                return 0;
+        }
+    }
+
+    /** Highest location priority the level allows. */
+    public static LocationProto.LocationPriority getMaxPriority(LocationProto.ThrottleLevel level) {
+        switch (level) {
+            case THROTTLE_MODERATE:
+            case THROTTLE_SEVERE:
+                // Low power would drop GNSS altogether, which is worse than a slower stream
+                return LocationProto.LocationPriority.PRIORITY_BALANCED;
+            default:
+                return LocationProto.LocationPriority.PRIORITY_HIGH_ACCURACY;
+        }
+    }
+
+    private void onBatteryChanged(Intent intent) {
+        int level = intent.getIntExtra(BatteryManager.EXTRA_LEVEL, -1);
+        int scale = intent.getIntExtra(BatteryManager.EXTRA_SCALE, -1);
+        if (level >= 0 && scale > 0) {
+            batteryPercent = level * 100 / scale;
+        }
+        // Powered from the car: battery level doesn't matter, only heat does
+        charging = intent.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) != 0;
+    }
+
+    private void update() {
+        LocationProto.ThrottleLevel newLevel = max(getThermalLevel(), getBatteryLevel());
+        if (newLevel == level) {
+            return;
+        }
+        Log.i(TAG, "Throttle level " + level + " -> " + newLevel + " (thermal status " + thermalStatus +
+                ", battery " + batteryPercent + "%" + (charging ? ", charging" : "") +
+                (powerSaveMode ? ", power save mode" : "") + ")");
+        level = newLevel;
+        listener.onThrottleLevelChanged(newLevel);
+    }
+
+    private LocationProto.ThrottleLevel getThermalLevel() {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.Q) {
+            return LocationProto.ThrottleLevel.THROTTLE_NONE;
+        }
+        // Light is what every phone reaches in a warm car, the system itself only acts from moderate
+        switch (thermalStatus) {
+            case PowerManager.THERMAL_STATUS_NONE:
+            case PowerManager.THERMAL_STATUS_LIGHT:
+                return LocationProto.ThrottleLevel.THROTTLE_NONE;
+            case PowerManager.THERMAL_STATUS_MODERATE:
+                return LocationProto.ThrottleLevel.THROTTLE_LIGHT;
+            case PowerManager.THERMAL_STATUS_SEVERE:
+                return LocationProto.ThrottleLevel.THROTTLE_MODERATE;
+            default:
+                return LocationProto.ThrottleLevel.THROTTLE_SEVERE;
+        }
+    }
+
+    private LocationProto.ThrottleLevel getBatteryLevel() {
+        if (!charging && batteryPercent <= CRITICAL_BATTERY_PERCENT) {
+            return LocationProto.ThrottleLevel.THROTTLE_MODERATE;
+        }
+        if ((!charging && batteryPercent <= LOW_BATTERY_PERCENT) || powerSaveMode) {
+            return LocationProto.ThrottleLevel.THROTTLE_LIGHT;
+        }
+        return LocationProto.ThrottleLevel.THROTTLE_NONE;
+    }
+
+    private static LocationProto.ThrottleLevel max(LocationProto.ThrottleLevel a, LocationProto.ThrottleLevel b) {
+        return a.getNumber() >= b.getNumber() ? a : b;
+    }
+}
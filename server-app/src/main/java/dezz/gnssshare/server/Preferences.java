@@ -33,7 +33,13 @@ import java.util.Set;
 public class Preferences {
     private static final String PREF_BLUETOOTH_AUTO_START_ENABLED = "bluetoothAutoStartEnabled";
     private static final String PREF_BLUETOOTH_TRIGGER_DEVICES = "bluetoothTriggerDevices";
+    private static final String PREF_BLUETOOTH_PREWARM_ENABLED = "bluetoothPrewarmEnabled";
     private static final String PREF_FUSED_LOCATION_ENABLED = "fusedLocationEnabled";
+    private static final String PREF_HIGH_RATE_ENABLED = "highRateEnabled";
+    private static final String PREF_ADAPTIVE_POWER_ENABLED = "adaptivePowerEnabled";
+    private static final String PREF_KEEP_WARM_SEC = "keepWarmSec";
+
+    public static final int DEFAULT_KEEP_WARM_SEC = 15;
 
     // Legacy keys for migration
     private static final String PREF_BLUETOOTH_TRIGGER_DEVICE_MAC = "bluetoothTriggerDeviceMac";
@@ -50,6 +56,15 @@ public class Preferences {
         return getPrefs(context).getBoolean(PREF_BLUETOOTH_AUTO_START_ENABLED, false);
     }
 
+    // Start GNSS as soon as a trigger device connects, before any client does
+    public static void setBluetoothPrewarmEnabled(Context context, boolean enabled) {
+        getPrefs(context).edit().putBoolean(PREF_BLUETOOTH_PREWARM_ENABLED, enabled).apply();
+    }
+
+    public static boolean bluetoothPrewarmEnabled(Context context) {
+        return getPrefs(context).getBoolean(PREF_BLUETOOTH_PREWARM_ENABLED, false);
+    }
+
     // Bluetooth Trigger Devices (multi-device support)
 
     public static void addBluetoothTriggerDevice(Context context, String mac, String name) {
@@ -130,6 +145,34 @@ public class Preferences {
         return getPrefs(context).getBoolean(PREF_FUSED_LOCATION_ENABLED, true);
     }
 
+    // High-rate mode: fastest updates the device supports for clients without their own interval
+    public static void setHighRateEnabled(Context context, boolean enabled) {
+        getPrefs(context).edit().putBoolean(PREF_HIGH_RATE_ENABLED, enabled).apply();
+    }
+
+    public static boolean highRateEnabled(Context context) {
+        return getPrefs(context).getBoolean(PREF_HIGH_RATE_ENABLED, false);
+    }
+
+    // Adaptive power: lower GNSS rate and priority while the phone isn't moving
+    public static void setAdaptivePowerEnabled(Context context, boolean enabled) {
+        getPrefs(context).edit().putBoolean(PREF_ADAPTIVE_POWER_ENABLED, enabled).apply();
+    }
+
+    public static boolean adaptivePowerEnabled(Context context) {
+        return getPrefs(context).getBoolean(PREF_ADAPTIVE_POWER_ENABLED, false);
+    }
+
+    // How long GNSS keeps running after the last client disconnected; it's extended automatically
+    // when clients keep coming back shortly after that
+    public static void setKeepWarmSec(Context context, int seconds) {
+        getPrefs(context).edit().putInt(PREF_KEEP_WARM_SEC, seconds).apply();
+    }
+
+    public static int keepWarmSec(Context context) {
+        return getPrefs(context).getInt(PREF_KEEP_WARM_SEC, DEFAULT_KEEP_WARM_SEC);
+    }
+
     private static SharedPreferences getPrefs(Context context) {
         return context.getSharedPreferences(context.getPackageName() + "_preferences", Context.MODE_PRIVATE);
     }
@@ -0,0 +1,304 @@
+/*
+ * Copyright © 2025-2026 Dezz (https://github.com/DezzK)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package dezz.gnssshare.server;
+
+import android.location.Location;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import dezz.gnssshare.proto.LocationProto;
+
+/**
+ * Encodes full {@link LocationProto.ServerResponse} frames straight from {@link Location} fields,
+ * without building LocationUpdate or ServerResponse messages on every fix.
+ * <p>
+ * The output is byte-for-byte what the generated code produces: fields are written in field
+ * number order and proto3 default values are skipped. Any change to these messages in
+ * location.proto has to be mirrored here.
+ * <p>
+ * Not thread-safe, the scratch buffer is shared between calls.
+ */
+public final class ResponseEncoder {
+    private static final int WIRETYPE_VARINT = 0;
+    private static final int WIRETYPE_FIXED64 = 1;
+    private static final int WIRETYPE_LENGTH_DELIMITED = 2;
+    private static final int WIRETYPE_FIXED32 = 5;
+
+    // ServerResponse
+    private static final int STATUS_TAG = tag(LocationProto.ServerResponse.STATUS_FIELD_NUMBER, WIRETYPE_LENGTH_DELIMITED);
+    private static final int SATELLITES_TAG = tag(LocationProto.ServerResponse.SATELLITES_FIELD_NUMBER, WIRETYPE_VARINT);
+    private static final int LOCATION_UPDATE_TAG = tag(LocationProto.ServerResponse.LOCATION_UPDATE_FIELD_NUMBER, WIRETYPE_LENGTH_DELIMITED);
+    private static final int LIVENESS_TIMEOUT_TAG = tag(LocationProto.ServerResponse.LIVENESS_TIMEOUT_MS_FIELD_NUMBER, WIRETYPE_VARINT);
+    private static final int SEQUENCE_TAG = tag(LocationProto.ServerResponse.SEQUENCE_FIELD_NUMBER, WIRETYPE_VARINT);
+    private static final int THROTTLE_LEVEL_TAG = tag(LocationProto.ServerResponse.THROTTLE_LEVEL_FIELD_NUMBER, WIRETYPE_VARINT);
+    private static final int SESSION_ID_TAG = tag(LocationProto.ServerResponse.SESSION_ID_FIELD_NUMBER, WIRETYPE_VARINT);
+
+    // LocationUpdate
+    private static final int TIMESTAMP_TAG = tag(LocationProto.LocationUpdate.TIMESTAMP_FIELD_NUMBER, WIRETYPE_VARINT);
+    private static final int LATITUDE_TAG = tag(LocationProto.LocationUpdate.LATITUDE_FIELD_NUMBER, WIRETYPE_FIXED64);
+    private static final int LONGITUDE_TAG = tag(LocationProto.LocationUpdate.LONGITUDE_FIELD_NUMBER, WIRETYPE_FIXED64);
+    private static final int ALTITUDE_TAG = tag(LocationProto.LocationUpdate.ALTITUDE_FIELD_NUMBER, WIRETYPE_FIXED64);
+    private static final int ACCURACY_TAG = tag(LocationProto.LocationUpdate.ACCURACY_FIELD_NUMBER, WIRETYPE_FIXED32);
+    private static final int BEARING_TAG = tag(LocationProto.LocationUpdate.BEARING_FIELD_NUMBER, WIRETYPE_FIXED32);
+    private static final int SPEED_TAG = tag(LocationProto.LocationUpdate.SPEED_FIELD_NUMBER, WIRETYPE_FIXED32);
+    private static final int PROVIDER_TAG = tag(LocationProto.LocationUpdate.PROVIDER_FIELD_NUMBER, WIRETYPE_LENGTH_DELIMITED);
+    private static final int LOCATION_AGE_TAG = tag(LocationProto.LocationUpdate.LOCATION_AGE_FIELD_NUMBER, WIRETYPE_FIXED32);
+    private static final int CACHED_TAG = tag(LocationProto.LocationUpdate.CACHED_FIELD_NUMBER, WIRETYPE_VARINT);
+    private static final int ELAPSED_REALTIME_NANOS_TAG = tag(LocationProto.LocationUpdate.ELAPSED_REALTIME_NANOS_FIELD_NUMBER, WIRETYPE_VARINT);
+
+    private static final int MAX_VARINT_SIZE = 10;
+    private static final byte[] EMPTY = new byte[0];
+
+    // Little-endian, so fixed64 and fixed32 fields can be written with putDouble() and putFloat()
+    private ByteBuffer buffer = ByteBuffer.allocate(256).order(ByteOrder.LITTLE_ENDIAN);
+
+    // Status and provider rarely change, so their UTF-8 bytes are kept between calls
+    private String statusString = null;
+    private byte[] statusBytes = null;
+    private String providerString = null;
+    private byte[] providerBytes = null;
+
+    /**
+     * Encodes a full server response frame.
+     *
+     * @param location    latest fix or null if there is none yet; altitude, accuracy, bearing and
+     *                    speed are only written if the location has them, elapsed realtime always
+     * @param locationAge seconds between the fix and its arrival on the server
+     * @param cached      whether the fix is a last known one from before GNSS started
+     * @param fieldMask   {@link LocationProto.LocationField} values of the optional fields to write,
+     *                    0 for all of them
+     * @param throttleLevel {@link LocationProto.ThrottleLevel} value
+     */
+    public ResponseFrame encode(String status, int satellites, Location location, float locationAge, boolean cached,
+                                int fieldMask, int livenessTimeoutMs, long sequence, int throttleLevel, long sessionId) {
+        if (fieldMask == LocationProto.LocationField.ALL_FIELDS_VALUE) {
+            fieldMask = ~0;
+        }
+        byte[] status8 = getStatusBytes(status);
+        byte[] provider8 = location != null && has(fieldMask, LocationProto.LocationField.PROVIDER_VALUE)
+                ? getProviderBytes(location.getProvider()) : EMPTY;
+        if (!has(fieldMask, LocationProto.LocationField.LOCATION_AGE_VALUE)) {
+            locationAge = 0;
+        }
+
+        int locationSize = location != null ? locationUpdateSize(location, locationAge, cached, fieldMask, provider8) : 0;
+        int maxSize = ResponseFrame.HEADER_SIZE
+                + 1 + MAX_VARINT_SIZE + status8.length
+                + 1 + MAX_VARINT_SIZE
+                + 1 + MAX_VARINT_SIZE + locationSize
+                + 1 + MAX_VARINT_SIZE
+                + 1 + MAX_VARINT_SIZE
+                + 1 + MAX_VARINT_SIZE
+                + 1 + MAX_VARINT_SIZE;
+        if (buffer.capacity() < maxSize) {
+            buffer = ByteBuffer.allocate(maxSize * 2).order(ByteOrder.LITTLE_ENDIAN);
+        }
+
+        ByteBuffer out = buffer;
+        out.clear();
+        out.position(ResponseFrame.HEADER_SIZE);
+
+        if (status8.length != 0) {
+            writeVarint(out, STATUS_TAG);
+            writeVarint(out, status8.length);
+            out.put(status8);
+        }
+        if (satellites != 0) {
+            writeVarint(out, SATELLITES_TAG);
+            // Negative int32 values are sign-extended to 64 bits
+            writeVarint(out, satellites);
+        }
+        if (location != null) {
+            writeVarint(out, LOCATION_UPDATE_TAG);
+            writeVarint(out, locationSize);
+            writeLocationUpdate(out, location, locationAge, cached, fieldMask, provider8);
+        }
+        if (livenessTimeoutMs != 0) {
+            writeVarint(out, LIVENESS_TIMEOUT_TAG);
+            writeVarint(out, livenessTimeoutMs & 0xFFFFFFFFL);
+        }
+        if (sequence != 0) {
+            writeVarint(out, SEQUENCE_TAG);
+            writeVarint(out, sequence);
+        }
+        if (throttleLevel != 0) {
+            writeVarint(out, THROTTLE_LEVEL_TAG);
+            writeVarint(out, throttleLevel);
+        }
+        if (sessionId != 0) {
+            writeVarint(out, SESSION_ID_TAG);
+            writeVarint(out, sessionId);
+        }
+
+        // Length prefix is big-endian, unlike the fixed-size fields
+        int length = out.position() - ResponseFrame.HEADER_SIZE;
+        byte[] array = out.array();
+        array[0] = (byte) (length >>> 24);
+        array[1] = (byte) (length >>> 16);
+        array[2] = (byte) (length >>> 8);
+        array[3] = (byte) length;
+        return ResponseFrame.wrap(Arrays.copyOf(array, out.position()));
+    }
+
+    private static int locationUpdateSize(Location location, float locationAge, boolean cached, int fieldMask,
+                                          byte[] provider8) {
+        int size = 0;
+        if (location.getTime() != 0) {
+            size += 1 + varintSize(location.getTime());
+        }
+        if (isSet(location.getLatitude())) {
+            size += 1 + 8;
+        }
+        if (isSet(location.getLongitude())) {
+            size += 1 + 8;
+        }
+        if (has(fieldMask, LocationProto.LocationField.ALTITUDE_VALUE) && location.hasAltitude() && isSet(location.getAltitude())) {
+            size += 1 + 8;
+        }
+        if (has(fieldMask, LocationProto.LocationField.ACCURACY_VALUE) && location.hasAccuracy() && isSet(location.getAccuracy())) {
+            size += 1 + 4;
+        }
+        if (has(fieldMask, LocationProto.LocationField.BEARING_VALUE) && location.hasBearing() && isSet(location.getBearing())) {
+            size += 1 + 4;
+        }
+        if (has(fieldMask, LocationProto.LocationField.SPEED_VALUE) && location.hasSpeed() && isSet(location.getSpeed())) {
+            size += 1 + 4;
+        }
+        if (provider8.length != 0) {
+            size += 1 + varintSize(provider8.length) + provider8.length;
+        }
+        if (isSet(locationAge)) {
+            size += 1 + 4;
+        }
+        if (cached) {
+            size += 1 + 1;
+        }
+        if (location.getElapsedRealtimeNanos() != 0) {
+            size += 1 + varintSize(location.getElapsedRealtimeNanos());
+        }
+        return size;
+    }
+
+    private static void writeLocationUpdate(ByteBuffer out, Location location, float locationAge, boolean cached,
+                                            int fieldMask, byte[] provider8) {
+        if (location.getTime() != 0) {
+            writeVarint(out, TIMESTAMP_TAG);
+            writeVarint(out, location.getTime());
+        }
+        if (isSet(location.getLatitude())) {
+            writeVarint(out, LATITUDE_TAG);
+            out.putDouble(location.getLatitude());
+        }
+        if (isSet(location.getLongitude())) {
+            writeVarint(out, LONGITUDE_TAG);
+            out.putDouble(location.getLongitude());
+        }
+        if (has(fieldMask, LocationProto.LocationField.ALTITUDE_VALUE) && location.hasAltitude() && isSet(location.getAltitude())) {
+            writeVarint(out, ALTITUDE_TAG);
+            out.putDouble(location.getAltitude());
+        }
+        if (has(fieldMask, LocationProto.LocationField.ACCURACY_VALUE) && location.hasAccuracy() && isSet(location.getAccuracy())) {
+            writeVarint(out, ACCURACY_TAG);
+            out.putFloat(location.getAccuracy());
+        }
+        if (has(fieldMask, LocationProto.LocationField.BEARING_VALUE) && location.hasBearing() && isSet(location.getBearing())) {
+            writeVarint(out, BEARING_TAG);
+            out.putFloat(location.getBearing());
+        }
+        if (has(fieldMask, LocationProto.LocationField.SPEED_VALUE) && location.hasSpeed() && isSet(location.getSpeed())) {
+            writeVarint(out, SPEED_TAG);
+            out.putFloat(location.getSpeed());
+        }
+        if (provider8.length != 0) {
+            writeVarint(out, PROVIDER_TAG);
+            writeVarint(out, provider8.length);
+            out.put(provider8);
+        }
+        if (isSet(locationAge)) {
+            writeVarint(out, LOCATION_AGE_TAG);
+            out.putFloat(locationAge);
+        }
+        if (cached) {
+            writeVarint(out, CACHED_TAG);
+            out.put((byte) 1);
+        }
+        if (location.getElapsedRealtimeNanos() != 0) {
+            writeVarint(out, ELAPSED_REALTIME_NANOS_TAG);
+            writeVarint(out, location.getElapsedRealtimeNanos());
+        }
+    }
+
+    private byte[] getStatusBytes(String status) {
+        if (status == null) {
+            status = "";
+        }
+        if (!status.equals(statusString)) {
+            statusBytes = status.getBytes(StandardCharsets.UTF_8);
+            statusString = status;
+        }
+        return statusBytes;
+    }
+
+    private byte[] getProviderBytes(String provider) {
+        if (provider == null) {
+            provider = "";
+        }
+        if (!provider.equals(providerString)) {
+            providerBytes = provider.getBytes(StandardCharsets.UTF_8);
+            providerString = provider;
+        }
+        return providerBytes;
+    }
+
+    private static boolean has(int fieldMask, int field) {
+        return (fieldMask & field) != 0;
+    }
+
+    // Protobuf compares raw bits, so -0.0 is written and only +0.0 is skipped
+    private static boolean isSet(double value) {
+        return Double.doubleToRawLongBits(value) != 0;
+    }
+
+    private static boolean isSet(float value) {
+        return Float.floatToRawIntBits(value) != 0;
+    }
+
+    private static int tag(int fieldNumber, int wireType) {
+        return (fieldNumber << 3) | wireType;
+    }
+
+    private static int varintSize(long value) {
+        int size = 1;
+        while ((value & ~0x7FL) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    private static void writeVarint(ByteBuffer out, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.put((byte) value);
+    }
+}
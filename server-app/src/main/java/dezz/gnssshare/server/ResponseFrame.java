@@ -0,0 +1,130 @@
+/*
+ * Copyright © 2025-2026 Dezz (https://github.com/DezzK)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package dezz.gnssshare.server;
+
+import android.os.SystemClock;
+
+import com.google.protobuf.CodedOutputStream;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import dezz.gnssshare.proto.LocationProto;
+
+/**
+ * Immutable, length-prefixed {@link LocationProto.ServerResponse} ready to be written to the wire.
+ * <p>
+ * A frame is encoded once per server state change and shared by all clients: every client gets
+ * its own read-only view over the same bytes, so nothing is copied or re-serialized per client.
+ * <p>
+ * A client's queue holds at most one unsent state frame: a frame carrying the complete latest
+ * state replaces it, because the newer state makes it useless. Every other frame, e.g. a compact
+ * stream keyframe the following deltas depend on, a batch, a time sync reply or a backfill,
+ * carries something the newer state doesn't, so it's never replaced.
+ */
+public final class ResponseFrame {
+    public static final int HEADER_SIZE = 4;
+
+    private final byte[] bytes;
+    private final boolean replaceable;
+    private final boolean confirmation;
+    private final long encodedAt = SystemClock.elapsedRealtimeNanos();
+
+    private ResponseFrame(byte[] bytes, boolean replaceable, boolean confirmation) {
+        this.bytes = bytes;
+        this.replaceable = replaceable;
+        this.confirmation = confirmation;
+    }
+
+    /** Encodes a state frame, which a newer one replaces in a client's queue until it's sent. */
+    public static ResponseFrame encode(LocationProto.ServerResponse response) {
+        return encode(response, true, false);
+    }
+
+    /** Encodes a frame that is never replaced in a client's queue. */
+    public static ResponseFrame encodeNonReplaceable(LocationProto.ServerResponse response) {
+        return encode(response, false, false);
+    }
+
+    /**
+     * Encodes a frame that only confirms the latest state, like a compact stream no-change frame.
+     * It refers to the frame before it, so it never replaces a queued state frame, and it's not
+     * queued at all behind an unsent one, which tells the client more.
+     */
+    public static ResponseFrame encodeConfirmation(LocationProto.ServerResponse response) {
+        return encode(response, false, true);
+    }
+
+    private static ResponseFrame encode(LocationProto.ServerResponse response, boolean replaceable,
+                                        boolean confirmation) {
+        int length = response.getSerializedSize();
+        byte[] bytes = new byte[HEADER_SIZE + length];
+
+        // Length prefix (4 bytes, big-endian) followed by the message
+        bytes[0] = (byte) (length >>> 24);
+        bytes[1] = (byte) (length >>> 16);
+        bytes[2] = (byte) (length >>> 8);
+        bytes[3] = (byte) length;
+
+        CodedOutputStream output = CodedOutputStream.newInstance(bytes, HEADER_SIZE, length);
+        try {
+            response.writeTo(output);
+            output.checkNoSpaceLeft();
+        } catch (IOException e) {
+            throw new IllegalStateException("Serializing to a byte array threw an IOException", e);
+        }
+        return new ResponseFrame(bytes, replaceable, confirmation);
+    }
+
+    /**
+     * Wraps bytes that already hold the length prefix and a full server state. The array must not
+     * be modified afterwards.
+     */
+    static ResponseFrame wrap(byte[] bytes) {
+        return new ResponseFrame(bytes, true, false);
+    }
+
+    public boolean isReplaceable() {
+        return replaceable;
+    }
+
+    /** Whether the frame only confirms the state of the frame before it. */
+    public boolean isConfirmation() {
+        return confirmation;
+    }
+
+    /** {@link SystemClock#elapsedRealtimeNanos()} when the frame was encoded. */
+    public long getEncodedAt() {
+        return encodedAt;
+    }
+
+    /** Total size of the frame including the length prefix. */
+    public int size() {
+        return bytes.length;
+    }
+
+    /** Returns a new read-only view over the frame, positioned at its start. */
+    public ByteBuffer newBuffer() {
+        return ByteBuffer.wrap(bytes).asReadOnlyBuffer();
+    }
+
+    /** Returns a new read-only view over the message only, without the length prefix. */
+    public ByteBuffer newPayloadBuffer() {
+        return ByteBuffer.wrap(bytes, HEADER_SIZE, bytes.length - HEADER_SIZE).asReadOnlyBuffer();
+    }
+}
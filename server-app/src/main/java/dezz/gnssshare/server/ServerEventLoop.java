@@ -0,0 +1,385 @@
+/*
+ * Copyright © 2025-2026 Dezz (https://github.com/DezzK)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package dezz.gnssshare.server;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.google.protobuf.InvalidProtocolBufferException;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import dezz.gnssshare.proto.LocationProto;
+import dezz.gnssshare.shared.LatencyHistogram;
+
+/**
+ * Non-blocking TCP server running on a single I/O thread.
+ * <p>
+ * The loop accepts clients, reads their heartbeat packets, writes queued responses and drops
+ * clients whose heartbeats stopped, so the number of threads doesn't depend on the number of
+ * connected clients.
+ */
+public class ServerEventLoop implements Runnable {
+    private static final String TAG = "ServerEventLoop";
+    // Any packet from the client proves it is alive; clients learn this value from ServerResponse
+    public static final int LIVENESS_TIMEOUT_MS = 6000;
+    private static final long TIMEOUT_TICK_MS = 250;
+    private static final int TIMEOUT_WHEEL_SLOTS = 32; // 8 seconds per turn
+    private static final byte HEARTBEAT_PACKET = 0x01; // Expected heartbeat packet
+    private static final byte CLIENT_REQUEST_PACKET = 0x02; // Followed by length and ClientRequest
+    private static final int CLIENT_REQUEST_HEADER_SIZE = 5;
+    private static final byte BATCH_ACK_PACKET = 0x03; // Followed by the 8-byte batch id
+    private static final int BATCH_ACK_SIZE = 9;
+    private static final byte TIME_SYNC_PACKET = 0x04; // Followed by the client's 8-byte clock reading
+    private static final int TIME_SYNC_SIZE = 9;
+
+    public interface Listener {
+        void onServerFailed(Exception e);
+
+        void onClientConnected(ClientConnection client);
+
+        void onHeartbeatReceived(ClientConnection client);
+
+        void onClientRequest(ClientConnection client, LocationProto.ClientRequest request);
+
+        void onClientDisconnected(ClientConnection client);
+    }
+
+    private final int port;
+    private final Listener listener;
+    private final Selector selector;
+    private final LatencyHistogram writeLatency;
+
+    // Owned by the loop thread
+    private final ArrayList<ClientConnection> clients = new ArrayList<>();
+    private ServerSocketChannel serverChannel;
+    private final TimingWheel<ClientConnection> heartbeatTimeouts =
+            new TimingWheel<>(TIMEOUT_TICK_MS, TIMEOUT_WHEEL_SLOTS, SystemClock.elapsedRealtime());
+    private final TimingWheel.ExpiryListener<ClientConnection> onHeartbeatTimeout = this::onHeartbeatTimeout;
+
+    private final ConcurrentLinkedQueue<ClientConnection> pendingFlushes = new ConcurrentLinkedQueue<>();
+    private volatile boolean running = false;
+    private Thread thread;
+
+    /**
+     * @param writeLatency receives the time from encoding each frame to writing it to the socket
+     */
+    public ServerEventLoop(int port, Listener listener, LatencyHistogram writeLatency) throws IOException {
+        this.port = port;
+        this.listener = listener;
+        this.writeLatency = writeLatency;
+        this.selector = Selector.open();
+    }
+
+    public synchronized void start() {
+        if (thread != null) {
+            return;
+        }
+        running = true;
+        thread = new Thread(this, "GNSSServerLoop");
+        thread.start();
+    }
+
+    public void shutdown() {
+        running = false;
+        selector.wakeup();
+    }
+
+    void requestFlush(ClientConnection client) {
+        pendingFlushes.add(client);
+        selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        try {
+            serverChannel = ServerSocketChannel.open();
+            serverChannel.socket().setReuseAddress(true);
+            serverChannel.bind(new InetSocketAddress(port));
+            serverChannel.configureBlocking(false);
+            serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+            Log.d(TAG, "Server started on port " + port);
+        } catch (Exception e) {
+            Log.e(TAG, "Error starting server", e);
+            closeServerChannel();
+            closeSelector();
+            listener.onServerFailed(e);
+            return;
+        }
+
+        try {
+            while (running) {
+                // Sleep until I/O happens or the earliest heartbeat deadline may expire
+                // (0 means no deadlines at all)
+                selector.select(heartbeatTimeouts.millisUntilNextExpiry(SystemClock.elapsedRealtime()));
+
+                processPendingFlushes();
+                processSelectedKeys();
+                heartbeatTimeouts.advance(SystemClock.elapsedRealtime(), onHeartbeatTimeout);
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "Error in server loop", e);
+        } finally {
+            Log.d(TAG, "Stopping server");
+            closeServerChannel();
+            for (int i = clients.size() - 1; i >= 0; i--) {
+                closeClient(clients.get(i));
+            }
+            closeSelector();
+        }
+    }
+
+    private void processSelectedKeys() {
+        Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+        while (iterator.hasNext()) {
+            SelectionKey key = iterator.next();
+            iterator.remove();
+
+            if (!key.isValid()) {
+                continue;
+            }
+
+            if (key.isAcceptable()) {
+                acceptClient();
+                continue;
+            }
+
+            ClientConnection client = (ClientConnection) key.attachment();
+            if (key.isReadable()) {
+                readClient(client);
+            }
+            if (key.isValid() && key.isWritable()) {
+                flushClient(client);
+            }
+        }
+    }
+
+    private void acceptClient() {
+        SocketChannel channel;
+        try {
+            channel = serverChannel.accept();
+            if (channel == null) {
+                return;
+            }
+            channel.configureBlocking(false);
+            // Frames are written whole, so there's nothing to gain from delaying small segments
+            channel.socket().setTcpNoDelay(true);
+        } catch (IOException e) {
+            Log.e(TAG, "Error accepting client connection", e);
+            return;
+        }
+
+        ClientConnection client;
+        try {
+            SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+            client = new ClientConnection(this, channel, key, writeLatency);
+            key.attach(client);
+        } catch (IOException e) {
+            Log.e(TAG, "Error registering client connection", e);
+            try {
+                channel.close();
+            } catch (IOException ex) {
+                Log.w(TAG, "Error closing client socket", ex);
+            }
+            return;
+        }
+
+        Log.i(TAG, "New client connected: " + client.getClientAddress());
+        clients.add(client);
+        heartbeatTimeouts.schedule(client.heartbeatTimeout, client.getLastPacketTime() + LIVENESS_TIMEOUT_MS);
+        listener.onClientConnected(client);
+    }
+
+    private void readClient(ClientConnection client) {
+        ByteBuffer buffer = client.inbound;
+        int count;
+        try {
+            count = client.read(buffer);
+        } catch (IOException e) {
+            Log.i(TAG, "Client disconnected: " + client.getClientAddress() + " - " + e.getMessage());
+            closeClient(client);
+            return;
+        }
+
+        if (count < 0) {
+            Log.i(TAG, "Client closed connection: " + client.getClientAddress());
+            closeClient(client);
+            return;
+        }
+        if (count == 0) {
+            return;
+        }
+
+        // Taken before parsing, the closer to the arrival the better the clock offset estimate
+        long receivedAt = SystemClock.elapsedRealtimeNanos();
+
+        // Any packet proves the client is alive
+        client.onPacketReceived();
+        heartbeatTimeouts.schedule(client.heartbeatTimeout, client.getLastPacketTime() + LIVENESS_TIMEOUT_MS);
+
+        boolean heartbeatReceived = false;
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            int start = buffer.position();
+            byte packet = buffer.get(start);
+            if (packet == HEARTBEAT_PACKET) {
+                buffer.position(start + 1);
+                heartbeatReceived = true;
+            } else if (packet == CLIENT_REQUEST_PACKET) {
+                if (buffer.remaining() < CLIENT_REQUEST_HEADER_SIZE) {
+                    break;
+                }
+                int length = buffer.getInt(start + 1);
+                if (length < 0 || length > ClientConnection.MAX_CLIENT_REQUEST_SIZE) {
+                    Log.w(TAG, "Invalid request length " + length + " from client: " + client.getClientAddress());
+                    closeClient(client);
+                    return;
+                }
+                if (buffer.remaining() < CLIENT_REQUEST_HEADER_SIZE + length) {
+                    break;
+                }
+                ByteBuffer message = buffer.duplicate();
+                message.position(start + CLIENT_REQUEST_HEADER_SIZE).limit(start + CLIENT_REQUEST_HEADER_SIZE + length);
+                buffer.position(start + CLIENT_REQUEST_HEADER_SIZE + length);
+                handleClientRequest(client, message);
+            } else if (packet == BATCH_ACK_PACKET) {
+                if (buffer.remaining() < BATCH_ACK_SIZE) {
+                    break;
+                }
+                long batchId = buffer.getLong(start + 1);
+                buffer.position(start + BATCH_ACK_SIZE);
+                Log.v(TAG, "Batch " + batchId + " acknowledged by: " + client.getClientAddress());
+                client.onBatchAcked(batchId);
+            } else if (packet == TIME_SYNC_PACKET) {
+                if (buffer.remaining() < TIME_SYNC_SIZE) {
+                    break;
+                }
+                long clientSendNanos = buffer.getLong(start + 1);
+                buffer.position(start + TIME_SYNC_SIZE);
+                replyTimeSync(client, clientSendNanos, receivedAt);
+            } else {
+                Log.w(TAG, "Unknown packet received from client: " + packet);
+                buffer.position(start + 1);
+            }
+        }
+        buffer.compact();
+
+        if (heartbeatReceived) {
+            Log.v(TAG, "Heartbeat received from: " + client.getClientAddress());
+            listener.onHeartbeatReceived(client);
+        }
+    }
+
+    private void handleClientRequest(ClientConnection client, ByteBuffer message) {
+        LocationProto.ClientRequest request;
+        try {
+            request = LocationProto.ClientRequest.parseFrom(message);
+        } catch (InvalidProtocolBufferException e) {
+            Log.w(TAG, "Malformed request from client: " + client.getClientAddress(), e);
+            return;
+        }
+
+        Log.d(TAG, "Request from " + client.getClientAddress() + ": " + request);
+        try {
+            // Batches are too big for datagrams, so batching clients get everything over TCP
+            boolean batching = request.getBatchIntervalMs() != 0;
+            client.setDatagramTransport(batching ? 0 : request.getUdpPort(), request.getMulticast());
+        } catch (IOException e) {
+            Log.w(TAG, "Can't set up datagram transport for client: " + client.getClientAddress(), e);
+        }
+        client.setCompactStream(request.getCompact());
+        client.setSubscription(request.getUpdateIntervalMs(), request.getFieldMask(), request.getPriority(),
+                request.getBatchIntervalMs());
+        listener.onClientRequest(client, request);
+    }
+
+    private static void replyTimeSync(ClientConnection client, long clientSendNanos, long receivedAt) {
+        LocationProto.TimeSync timeSync = LocationProto.TimeSync.newBuilder()
+                .setClientSendNanos(clientSendNanos)
+                .setServerReceiveNanos(receivedAt)
+                .setServerSendNanos(SystemClock.elapsedRealtimeNanos())
+                .build();
+        client.sendResponse(ResponseFrame.encodeNonReplaceable(LocationProto.ServerResponse.newBuilder()
+                .setTimeSync(timeSync)
+                .build()));
+    }
+
+    private void flushClient(ClientConnection client) {
+        if (client.isClosed()) {
+            return;
+        }
+        try {
+            client.flush();
+        } catch (IOException e) {
+            Log.w(TAG, "Error sending response to client " + client.getClientAddress(), e);
+            closeClient(client);
+        }
+    }
+
+    private void processPendingFlushes() {
+        ClientConnection client;
+        while ((client = pendingFlushes.poll()) != null) {
+            flushClient(client);
+        }
+    }
+
+    private void onHeartbeatTimeout(ClientConnection client) {
+        long timeSinceLastPacket = SystemClock.elapsedRealtime() - client.getLastPacketTime();
+        Log.w(TAG, "Liveness timeout for client: " + client.getClientAddress() +
+                " (last packet " + timeSinceLastPacket + "ms ago)");
+        closeClient(client);
+    }
+
+    private void closeClient(ClientConnection client) {
+        if (!clients.remove(client)) {
+            return;
+        }
+        heartbeatTimeouts.cancel(client.heartbeatTimeout);
+        client.close();
+        listener.onClientDisconnected(client);
+    }
+
+    private void closeServerChannel() {
+        if (serverChannel == null) {
+            return;
+        }
+        try {
+            serverChannel.close();
+        } catch (IOException e) {
+            Log.e(TAG, "Error closing server socket", e);
+        }
+        serverChannel = null;
+    }
+
+    private void closeSelector() {
+        try {
+            selector.close();
+        } catch (IOException e) {
+            Log.e(TAG, "Error closing selector", e);
+        }
+    }
+}
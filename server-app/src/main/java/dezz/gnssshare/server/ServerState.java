@@ -0,0 +1,204 @@
+/*
+ * Copyright © 2025-2026 Dezz (https://github.com/DezzK)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package dezz.gnssshare.server;
+
+import android.location.Location;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import dezz.gnssshare.proto.LocationProto;
+import dezz.gnssshare.shared.ServerStatus;
+
+/**
+ * Immutable snapshot of what the server tells its clients. A change produces a new snapshot that
+ * is published atomically, so readers on any thread see a consistent state without locking.
+ * <p>
+ * Frames encoded from a snapshot are cached in it and thrown away together with it.
+ */
+public final class ServerState {
+    /** State of a starting server. Not a shared constant, its frames and sequence belong to one run. */
+    public static ServerState initial() {
+        return new ServerState(ServerStatus.UNINITIALIZED.name(), 0, null, 0, false,
+                LocationProto.ThrottleLevel.THROTTLE_NONE);
+    }
+
+    private final String status;
+    private final int satellites;
+    // Treated as immutable once published, fix objects are never modified after delivery
+    private final Location location;
+    private final float locationAge;
+    // Last known fix from before GNSS started, or the last fix of a stopped session
+    private final boolean locationCached;
+    private final LocationProto.ThrottleLevel throttleLevel;
+
+    // Taken from the server's counter when the first frame of the snapshot is encoded, so snapshots
+    // nobody received don't leave gaps in the sequence. Guarded by this.
+    private long sequence = 0;
+
+    // Lazily encoded compact frame, set under the compact encoder's lock because the encoder keeps
+    // state and must see every snapshot once
+    volatile ResponseFrame compactFrame = null;
+    // Status without the fix, for clients that get their fixes in batches. Racing threads may
+    // encode it twice, which is harmless for the stateless encoder.
+    volatile ResponseFrame statusFrame = null;
+    // Full frames by field mask, in practice one or two entries
+    private volatile MaskedFrame fullFrames = null;
+
+    private static final class MaskedFrame {
+        final int fieldMask;
+        final ResponseFrame frame;
+        final MaskedFrame next;
+
+        MaskedFrame(int fieldMask, ResponseFrame frame, MaskedFrame next) {
+            this.fieldMask = fieldMask;
+            this.frame = frame;
+            this.next = next;
+        }
+    }
+
+    private ServerState(String status, int satellites, Location location, float locationAge, boolean locationCached,
+                        LocationProto.ThrottleLevel throttleLevel) {
+        this.status = status;
+        this.satellites = satellites;
+        this.location = location;
+        this.locationAge = locationAge;
+        this.locationCached = locationCached;
+        this.throttleLevel = throttleLevel;
+    }
+
+    public String getStatus() {
+        return status;
+    }
+
+    public int getSatellites() {
+        return satellites;
+    }
+
+    /** Latest fix or null if there is none yet. */
+    public Location getLocation() {
+        return location;
+    }
+
+    /** Seconds between the fix time and its arrival on the server. */
+    public float getLocationAge() {
+        return locationAge;
+    }
+
+    /** Whether the fix is not from the current GNSS session. */
+    public boolean isLocationCached() {
+        return locationCached;
+    }
+
+    public LocationProto.ThrottleLevel getThrottleLevel() {
+        return throttleLevel;
+    }
+
+    /**
+     * Sequence number shared by all frames of the snapshot, taken from the counter on the first
+     * call.
+     */
+    synchronized long getSequence(AtomicLong counter) {
+        if (sequence == 0) {
+            sequence = counter.incrementAndGet();
+        }
+        return sequence;
+    }
+
+    /** Full frame encoded for the field mask, or null if there is none yet. */
+    ResponseFrame getFullFrame(int fieldMask) {
+        for (MaskedFrame entry = fullFrames; entry != null; entry = entry.next) {
+            if (entry.fieldMask == fieldMask) {
+                return entry.frame;
+            }
+        }
+        return null;
+    }
+
+    /** Caches a full frame; an entry lost to a racing thread is simply encoded again. */
+    void putFullFrame(int fieldMask, ResponseFrame frame) {
+        fullFrames = new MaskedFrame(fieldMask, frame, fullFrames);
+    }
+
+    public ServerState withStatus(ServerStatus status) {
+        return new ServerState(status.name(), satellites, location, locationAge, locationCached, throttleLevel);
+    }
+
+    public ServerState withSatellites(int satellites) {
+        return new ServerState(status, satellites, location, locationAge, locationCached, throttleLevel);
+    }
+
+    public ServerState withLocation(Location location, float locationAge) {
+        return new ServerState(ServerStatus.TRANSMITTING_LOCATION.name(), satellites, location, locationAge, false,
+                throttleLevel);
+    }
+
+    /** Same status, with a fix that didn't come from the running GNSS session. */
+    public ServerState withCachedLocation(Location location, float locationAge) {
+        return new ServerState(status, satellites, location, locationAge, true, throttleLevel);
+    }
+
+    public ServerState withThrottleLevel(LocationProto.ThrottleLevel throttleLevel) {
+        return new ServerState(status, satellites, location, locationAge, locationCached, throttleLevel);
+    }
+
+    /** Builds the state as a message, only the compact stream needs it. */
+    public LocationProto.ServerResponse toResponse(int livenessTimeoutMs, long sessionId) {
+        LocationProto.ServerResponse.Builder response = LocationProto.ServerResponse.newBuilder()
+                .setStatus(status)
+                .setSatellites(satellites)
+                .setLivenessTimeoutMs(livenessTimeoutMs)
+                .setThrottleLevel(throttleLevel)
+                .setSessionId(sessionId);
+        if (location == null) {
+            return response.build();
+        }
+        LocationProto.LocationUpdate locationUpdate = toLocationUpdate(location, locationAge);
+        if (locationCached) {
+            locationUpdate = locationUpdate.toBuilder().setCached(true).build();
+        }
+        return response.setLocationUpdate(locationUpdate).build();
+    }
+
+    /** Builds a fix as a message, for the compact stream and for batches. */
+    static LocationProto.LocationUpdate toLocationUpdate(Location location, float locationAge) {
+        LocationProto.LocationUpdate.Builder builder = LocationProto.LocationUpdate.newBuilder()
+                .setTimestamp(location.getTime())
+                .setLatitude(location.getLatitude())
+                .setLongitude(location.getLongitude())
+                .setLocationAge(locationAge)
+                .setElapsedRealtimeNanos(location.getElapsedRealtimeNanos());
+
+        if (location.getProvider() != null) {
+            builder.setProvider(location.getProvider());
+        }
+
+        if (location.hasAltitude()) {
+            builder.setAltitude(location.getAltitude());
+        }
+        if (location.hasAccuracy()) {
+            builder.setAccuracy(location.getAccuracy());
+        }
+        if (location.hasBearing()) {
+            builder.setBearing(location.getBearing());
+        }
+        if (location.hasSpeed()) {
+            builder.setSpeed(location.getSpeed());
+        }
+        return builder.build();
+    }
+}
@@ -0,0 +1,154 @@
+/*
+ * Copyright © 2025-2026 Dezz (https://github.com/DezzK)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package dezz.gnssshare.server;
+
+/**
+ * Hashed timing wheel for deadlines that are rescheduled much more often than they expire,
+ * such as heartbeat timeouts.
+ * <p>
+ * Entries are intrusive doubly-linked list nodes, so scheduling, rescheduling and cancelling are
+ * O(1) and allocation-free. Time is supplied by the caller and must come from a monotonic clock.
+ * The wheel is not thread-safe and is meant to be driven by a single event loop.
+ */
+public class TimingWheel<T> {
+    public interface ExpiryListener<T> {
+        void onExpired(T owner);
+    }
+
+    public static final class Entry<T> {
+        private final T owner;
+        private long deadline;
+        private int slot = -1;
+        private Entry<T> prev;
+        private Entry<T> next;
+
+        public Entry(T owner) {
+            this.owner = owner;
+        }
+
+        public boolean isScheduled() {
+            return slot >= 0;
+        }
+    }
+
+    private final long tickMillis;
+    private final int mask;
+    private final Entry<T>[] slots;
+    private long currentTick;
+    private int size = 0;
+
+    /**
+     * @param tickMillis timeout precision
+     * @param slotCount  number of slots, rounded up to a power of two
+     * @param now        current monotonic time in milliseconds
+     */
+    @SuppressWarnings("unchecked")
+    public TimingWheel(long tickMillis, int slotCount, long now) {
+        int count = Integer.highestOneBit(Math.max(1, slotCount - 1)) << 1;
+        this.tickMillis = tickMillis;
+        this.mask = count - 1;
+        this.slots = (Entry<T>[]) new Entry[count];
+        this.currentTick = now / tickMillis;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /** Schedules the entry to expire at the given deadline, replacing its previous deadline. */
+    public void schedule(Entry<T> entry, long deadline) {
+        cancel(entry);
+
+        // Deadlines that fall into the current or a past tick are handled on the next tick
+        long tick = Math.max((deadline + tickMillis - 1) / tickMillis, currentTick + 1);
+        int slot = (int) (tick & mask);
+
+        entry.deadline = deadline;
+        entry.slot = slot;
+        entry.prev = null;
+        entry.next = slots[slot];
+        if (entry.next != null) {
+            entry.next.prev = entry;
+        }
+        slots[slot] = entry;
+        size++;
+    }
+
+    public void cancel(Entry<T> entry) {
+        if (entry.slot < 0) {
+            return;
+        }
+        if (entry.prev != null) {
+            entry.prev.next = entry.next;
+        } else {
+            slots[entry.slot] = entry.next;
+        }
+        if (entry.next != null) {
+            entry.next.prev = entry.prev;
+        }
+        entry.prev = null;
+        entry.next = null;
+        entry.slot = -1;
+        size--;
+    }
+
+    /** Expires every entry whose deadline is not later than {@code now}. */
+    public void advance(long now, ExpiryListener<T> listener) {
+        long targetTick = now / tickMillis;
+        if (targetTick <= currentTick) {
+            return;
+        }
+
+        // After a long pause every slot has to be visited once, but never more than once
+        long firstTick = Math.max(currentTick + 1, targetTick - mask);
+        currentTick = targetTick;
+        for (long tick = firstTick; tick <= targetTick; tick++) {
+            expireSlot((int) (tick & mask), now, listener);
+        }
+    }
+
+    /**
+     * Returns how long the caller may sleep before the next {@link #advance} can expire anything,
+     * or 0 if the wheel is empty.
+     */
+    public long millisUntilNextExpiry(long now) {
+        if (size == 0) {
+            return 0;
+        }
+        for (int i = 1; i <= mask + 1; i++) {
+            long tick = currentTick + i;
+            if (slots[(int) (tick & mask)] != null) {
+                return Math.max(1, tick * tickMillis - now);
+            }
+        }
+        return Math.max(1, (currentTick + 1) * tickMillis - now);
+    }
+
+    private void expireSlot(int slot, long now, ExpiryListener<T> listener) {
+        Entry<T> entry = slots[slot];
+        while (entry != null) {
+            Entry<T> next = entry.next;
+            // Entries with far deadlines stay in place until a later turn of the wheel
+            if (entry.deadline <= now) {
+                cancel(entry);
+                listener.onExpired(entry.owner);
+            }
+            entry = next;
+        }
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright © 2025-2026 Dezz (https://github.com/DezzK)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package dezz.gnssshare.server;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class KeepWarmPolicyTest {
+    private static final long BASE = 10000;
+
+    /** Leaves and comes back shortly after GNSS was stopped, which doubles the window. */
+    private static void missByLittle(KeepWarmPolicy policy, long now) {
+        long window = policy.onLastClientLeft(now);
+        policy.onStopped();
+        policy.onFirstClientConnected(now + window + 1);
+    }
+
+    @Test
+    public void shortDropsGrowTheWindow() {
+        KeepWarmPolicy policy = new KeepWarmPolicy(BASE);
+        missByLittle(policy, 1000);
+        assertEquals(2 * BASE, policy.getWindowMs());
+        missByLittle(policy, 100000);
+        assertEquals(4 * BASE, policy.getWindowMs());
+    }
+
+    @Test
+    public void loweringTheBaseDropsTheAdaptedWindow() {
+        KeepWarmPolicy policy = new KeepWarmPolicy(BASE);
+        missByLittle(policy, 1000);
+        missByLittle(policy, 100000);
+        policy.setBaseWindowMs(BASE / 2);
+        assertEquals(BASE / 2, policy.getWindowMs());
+    }
+
+    @Test
+    public void raisingTheBaseKeepsALongerAdaptedWindow() {
+        KeepWarmPolicy policy = new KeepWarmPolicy(BASE);
+        missByLittle(policy, 1000);
+        missByLittle(policy, 100000);
+        policy.setBaseWindowMs(BASE * 3);
+        assertEquals(4 * BASE, policy.getWindowMs());
+        policy.setBaseWindowMs(BASE * 5);
+        assertEquals(5 * BASE, policy.getWindowMs());
+    }
+
+    @Test
+    public void unchangedBaseKeepsTheAdaptedWindow() {
+        KeepWarmPolicy policy = new KeepWarmPolicy(BASE);
+        missByLittle(policy, 1000);
+        policy.setBaseWindowMs(BASE);
+        assertEquals(2 * BASE, policy.getWindowMs());
+    }
+}
@@ -0,0 +1,291 @@
+/*
+ * Copyright © 2025-2026 Dezz (https://github.com/DezzK)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package dezz.gnssshare.server;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+import android.location.Location;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import dezz.gnssshare.proto.LocationProto;
+
+/**
+ * Checks that {@link ResponseEncoder} writes exactly the bytes the generated code writes for the
+ * same response, so fields added to location.proto without mirroring them here show up as
+ * failures.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class ResponseEncoderTest {
+    private static final int ALL_FIELDS = LocationProto.LocationField.ALL_FIELDS_VALUE;
+    private static final int[] SINGLE_FIELDS = {
+            LocationProto.LocationField.ALTITUDE_VALUE,
+            LocationProto.LocationField.ACCURACY_VALUE,
+            LocationProto.LocationField.BEARING_VALUE,
+            LocationProto.LocationField.SPEED_VALUE,
+            LocationProto.LocationField.PROVIDER_VALUE,
+            LocationProto.LocationField.LOCATION_AGE_VALUE,
+    };
+
+    private final ResponseEncoder encoder = new ResponseEncoder();
+
+    @Test
+    public void emptyResponse() {
+        assertSameBytes("", 0, null, 0, false, ALL_FIELDS, 0, 0, 0, 0);
+    }
+
+    @Test
+    public void statusOnly() {
+        assertSameBytes("AWAITING_LOCATION", 0, null, 0, false, ALL_FIELDS, 0, 0, 0, 0);
+        assertSameBytes("Ожидание", 0, null, 0, false, ALL_FIELDS, 0, 0, 0, 0);
+    }
+
+    @Test
+    public void satellites() {
+        assertSameBytes("", 12, null, 0, false, ALL_FIELDS, 0, 0, 0, 0);
+        // int32 varints of negative values take ten bytes
+        assertSameBytes("", -1, null, 0, false, ALL_FIELDS, 0, 0, 0, 0);
+    }
+
+    @Test
+    public void locationWithAllFields() {
+        assertSameBytes("TRANSMITTING_LOCATION", 9, fullLocation(), 0.25f, false, ALL_FIELDS, 6000, 42,
+                LocationProto.ThrottleLevel.THROTTLE_LIGHT_VALUE, 0x1234567890ABCDEFL);
+    }
+
+    @Test
+    public void locationWithoutOptionalFields() {
+        Location location = new Location("gps");
+        location.setTime(1760000000000L);
+        location.setLatitude(55.75);
+        location.setLongitude(37.62);
+        assertSameBytes("TRANSMITTING_LOCATION", 5, location, 0, false, ALL_FIELDS, 0, 0, 0, 0);
+    }
+
+    @Test
+    public void locationWithZeroValues() {
+        // Fields that are present but hold proto3 default values are skipped
+        Location location = new Location("");
+        location.setAltitude(0);
+        location.setAccuracy(0);
+        location.setBearing(0);
+        location.setSpeed(0);
+        assertSameBytes("", 0, location, 0, false, ALL_FIELDS, 0, 0, 0, 0);
+        assertSameBytes("", 0, location, -0.0f, false, ALL_FIELDS, 0, 0, 0, 0);
+    }
+
+    @Test
+    public void negativeZeroCoordinates() {
+        Location location = new Location("gps");
+        location.setLatitude(-0.0);
+        location.setLongitude(-0.0);
+        location.setAltitude(-0.0);
+        assertSameBytes("", 0, location, 0, false, ALL_FIELDS, 0, 0, 0, 0);
+    }
+
+    @Test
+    public void nullProvider() {
+        Location location = fullLocation();
+        location.setProvider(null);
+        assertSameBytes("", 0, location, 0, false, ALL_FIELDS, 0, 0, 0, 0);
+
+        // Batches, the compact stream and backfills take the same fix through the generated code
+        LocationBatcher batcher = new LocationBatcher();
+        batcher.add(location, 0);
+        assertNotNull(batcher.flush(ServerState.initial(), 0, 0));
+        LocationProto.ServerResponse state = ServerState.initial().withLocation(location, 0).toResponse(0, 0);
+        assertEquals("", state.getLocationUpdate().getProvider());
+        assertNotNull(new CompactStreamEncoder().encode(state, () -> 1));
+        FixHistory history = new FixHistory();
+        history.add(location);
+        assertEquals(1, history.getSince(0).getLocationsCount());
+    }
+
+    @Test
+    public void cachedLocation() {
+        assertSameBytes("AWAITING_LOCATION", 0, fullLocation(), 12.5f, true, ALL_FIELDS, 0, 0, 0, 0);
+    }
+
+    @Test
+    public void elapsedRealtime() {
+        Location location = fullLocation();
+        location.setElapsedRealtimeNanos(0);
+        assertSameBytes("", 0, location, 0, false, ALL_FIELDS, 0, 0, 0, 0);
+        location.setElapsedRealtimeNanos(Long.MAX_VALUE);
+        assertSameBytes("", 0, location, 0, false, ALL_FIELDS, 0, 0, 0, 0);
+    }
+
+    @Test
+    public void eachFieldMask() {
+        for (int field : SINGLE_FIELDS) {
+            assertSameBytes("TRANSMITTING_LOCATION", 9, fullLocation(), 0.25f, false, field, 0, 0, 0, 0);
+        }
+    }
+
+    @Test
+    public void combinedFieldMasks() {
+        for (int mask = 1; mask < 64; mask++) {
+            assertSameBytes("TRANSMITTING_LOCATION", 9, fullLocation(), 0.25f, true, mask, 6000, 7, 0, 1);
+        }
+    }
+
+    @Test
+    public void livenessTimeout() {
+        assertSameBytes("", 0, null, 0, false, ALL_FIELDS, 6000, 0, 0, 0);
+        assertSameBytes("", 0, null, 0, false, ALL_FIELDS, Integer.MAX_VALUE, 0, 0, 0);
+    }
+
+    @Test
+    public void sequence() {
+        assertSameBytes("", 0, null, 0, false, ALL_FIELDS, 0, 1, 0, 0);
+        assertSameBytes("", 0, null, 0, false, ALL_FIELDS, 0, Long.MAX_VALUE, 0, 0);
+        assertSameBytes("", 0, null, 0, false, ALL_FIELDS, 0, -1, 0, 0);
+    }
+
+    @Test
+    public void throttleLevels() {
+        for (LocationProto.ThrottleLevel level : LocationProto.ThrottleLevel.values()) {
+            if (level != LocationProto.ThrottleLevel.UNRECOGNIZED) {
+                assertSameBytes("", 0, null, 0, false, ALL_FIELDS, 0, 0, level.getNumber(), 0);
+            }
+        }
+    }
+
+    @Test
+    public void sessionId() {
+        assertSameBytes("", 0, null, 0, false, ALL_FIELDS, 0, 0, 0, 1);
+        assertSameBytes("", 0, null, 0, false, ALL_FIELDS, 0, 0, 0, Long.MIN_VALUE);
+    }
+
+    @Test
+    public void randomResponses() {
+        Random random = new Random(42);
+        String[] statuses = {"", "TRANSMITTING_LOCATION", "AWAITING_LOCATION", "Статус"};
+        String[] providers = {"gps", "fused", "", null};
+        for (int i = 0; i < 5000; i++) {
+            Location location = null;
+            if (random.nextInt(10) != 0) {
+                location = new Location(providers[random.nextInt(providers.length)]);
+                location.setTime(random.nextInt(8) == 0 ? 0 : 1760000000000L + random.nextInt());
+                location.setLatitude(random.nextDouble() * 180 - 90);
+                location.setLongitude(random.nextDouble() * 360 - 180);
+                if (random.nextBoolean()) {
+                    location.setAltitude(random.nextDouble() * 1000);
+                }
+                if (random.nextBoolean()) {
+                    location.setAccuracy(random.nextFloat() * 50);
+                }
+                if (random.nextBoolean()) {
+                    location.setBearing(random.nextFloat() * 359);
+                }
+                if (random.nextBoolean()) {
+                    location.setSpeed(random.nextFloat() * 60);
+                }
+                location.setElapsedRealtimeNanos(random.nextInt(4) == 0 ? 0 : random.nextLong() >>> random.nextInt(40));
+            }
+            assertSameBytes(statuses[random.nextInt(statuses.length)], random.nextInt(40), location,
+                    random.nextInt(5) == 0 ? 0 : random.nextFloat() * 10, location != null && random.nextBoolean(),
+                    random.nextInt(3) == 0 ? ALL_FIELDS : random.nextInt(64), random.nextInt(5) == 0 ? 0 : 6000,
+                    random.nextInt(5) == 0 ? 0 : random.nextInt(1 << 30), random.nextInt(4),
+                    random.nextInt(4) == 0 ? 0 : random.nextLong());
+        }
+    }
+
+    private static Location fullLocation() {
+        Location location = new Location("gps");
+        location.setTime(1760000000123L);
+        location.setLatitude(55.755826);
+        location.setLongitude(37.6173);
+        location.setAltitude(156.5);
+        location.setAccuracy(3.9f);
+        location.setBearing(271.25f);
+        location.setSpeed(16.7f);
+        location.setElapsedRealtimeNanos(123456789012345L);
+        return location;
+    }
+
+    private void assertSameBytes(String status, int satellites, Location location, float locationAge, boolean cached,
+                                 int fieldMask, int livenessTimeoutMs, long sequence, int throttleLevel, long sessionId) {
+        ResponseFrame actual = encoder.encode(status, satellites, location, locationAge, cached, fieldMask,
+                livenessTimeoutMs, sequence, throttleLevel, sessionId);
+        LocationProto.ServerResponse expected = toResponse(status, satellites, location, locationAge, cached,
+                fieldMask, livenessTimeoutMs, sequence, throttleLevel, sessionId);
+        assertArrayEquals(expected.toString(), toBytes(ResponseFrame.encode(expected)), toBytes(actual));
+    }
+
+    /** The response built with the generated code, with the same field mask rules as the encoder. */
+    private static LocationProto.ServerResponse toResponse(String status, int satellites, Location location,
+                                                           float locationAge, boolean cached, int fieldMask,
+                                                           int livenessTimeoutMs, long sequence, int throttleLevel,
+                                                           long sessionId) {
+        LocationProto.ServerResponse.Builder response = LocationProto.ServerResponse.newBuilder()
+                .setStatus(status)
+                .setSatellites(satellites)
+                .setLivenessTimeoutMs(livenessTimeoutMs)
+                .setSequence(sequence)
+                .setThrottleLevelValue(throttleLevel)
+                .setSessionId(sessionId);
+        if (location == null) {
+            return response.build();
+        }
+
+        LocationProto.LocationUpdate.Builder update = LocationProto.LocationUpdate.newBuilder()
+                .setTimestamp(location.getTime())
+                .setLatitude(location.getLatitude())
+                .setLongitude(location.getLongitude())
+                .setCached(cached)
+                .setElapsedRealtimeNanos(location.getElapsedRealtimeNanos());
+        if (location.hasAltitude() && has(fieldMask, LocationProto.LocationField.ALTITUDE_VALUE)) {
+            update.setAltitude(location.getAltitude());
+        }
+        if (location.hasAccuracy() && has(fieldMask, LocationProto.LocationField.ACCURACY_VALUE)) {
+            update.setAccuracy(location.getAccuracy());
+        }
+        if (location.hasBearing() && has(fieldMask, LocationProto.LocationField.BEARING_VALUE)) {
+            update.setBearing(location.getBearing());
+        }
+        if (location.hasSpeed() && has(fieldMask, LocationProto.LocationField.SPEED_VALUE)) {
+            update.setSpeed(location.getSpeed());
+        }
+        if (location.getProvider() != null && has(fieldMask, LocationProto.LocationField.PROVIDER_VALUE)) {
+            update.setProvider(location.getProvider());
+        }
+        if (has(fieldMask, LocationProto.LocationField.LOCATION_AGE_VALUE)) {
+            update.setLocationAge(locationAge);
+        }
+        return response.setLocationUpdate(update).build();
+    }
+
+    private static boolean has(int fieldMask, int field) {
+        return fieldMask == ALL_FIELDS || (fieldMask & field) != 0;
+    }
+
+    private static byte[] toBytes(ResponseFrame frame) {
+        ByteBuffer buffer = frame.newBuffer();
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        return bytes;
+    }
+}
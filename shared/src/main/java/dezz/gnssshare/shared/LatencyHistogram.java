@@ -0,0 +1,163 @@
+/*
+ * Copyright © 2025-2026 Dezz (https://github.com/DezzK)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package dezz.gnssshare.shared;
+
+import android.os.SystemClock;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Rolling latency percentiles for one hop of the fix pipeline, e.g. from encoding a frame to
+ * writing it to the socket.
+ * <p>
+ * Latencies are counted in log-linear microsecond buckets: exact below 16 µs, then eight buckets
+ * per power of two, so a percentile is off by at most 1/16 of its value. Two windows are kept and
+ * the older one is dropped when the newer one is full, so percentiles cover the last one to two
+ * window lengths. Thread-safe and allocation-free, recording costs a few arithmetic operations.
+ */
+public class LatencyHistogram {
+    private static final int LINEAR_BUCKETS = 16;
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    // Up to 2^36 µs, about 19 hours, longer latencies land in the last bucket
+    private static final int MAX_EXPONENT = 36;
+    private static final int BUCKET_COUNT = LINEAR_BUCKETS + (MAX_EXPONENT - 4 + 1) * SUB_BUCKETS;
+
+    private final long windowMs;
+    private int[] current = new int[BUCKET_COUNT];
+    private int[] previous = new int[BUCKET_COUNT];
+    private long currentCount = 0;
+    private long previousCount = 0;
+    private long windowStart = -1;
+
+    /**
+     * @param windowMs length of one window, percentiles cover between one and two of them
+     */
+    public LatencyHistogram(long windowMs) {
+        this.windowMs = windowMs;
+    }
+
+    public void record(long latencyNanos) {
+        record(latencyNanos, SystemClock.elapsedRealtime());
+    }
+
+    /**
+     * @param latencyNanos latency measured with {@link SystemClock#elapsedRealtimeNanos()},
+     *                     negative values count as 0
+     * @param now          {@link SystemClock#elapsedRealtime()}
+     */
+    public synchronized void record(long latencyNanos, long now) {
+        advance(now);
+        current[bucketOf(Math.max(0, latencyNanos / 1000))]++;
+        currentCount++;
+    }
+
+    /** Latency in milliseconds below which the given fraction of samples lies, 0 without samples. */
+    public float getPercentileMs(double fraction) {
+        return getPercentileMs(fraction, SystemClock.elapsedRealtime());
+    }
+
+    public synchronized float getPercentileMs(double fraction, long now) {
+        advance(now);
+        long total = currentCount + previousCount;
+        if (total == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(fraction * total));
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += current[i] + previous[i];
+            if (seen >= rank) {
+                return (float) (bucketMidpoint(i) / 1000);
+            }
+        }
+        return (float) (bucketMidpoint(BUCKET_COUNT - 1) / 1000);
+    }
+
+    /** Number of samples the percentiles are currently computed from. */
+    public synchronized long getCount(long now) {
+        advance(now);
+        return currentCount + previousCount;
+    }
+
+    /** Percentiles for logs, like "p50 1.2 / p95 3.4 / p99 5.6 ms (n=120)". */
+    public String format(long now) {
+        return String.format(Locale.US, "p50 %.1f / p95 %.1f / p99 %.1f ms (n=%d)",
+                getPercentileMs(0.50, now), getPercentileMs(0.95, now), getPercentileMs(0.99, now), getCount(now));
+    }
+
+    public synchronized void reset() {
+        Arrays.fill(current, 0);
+        Arrays.fill(previous, 0);
+        currentCount = 0;
+        previousCount = 0;
+        windowStart = -1;
+    }
+
+    private void advance(long now) {
+        if (windowStart < 0) {
+            windowStart = now;
+            return;
+        }
+        long elapsed = now - windowStart;
+        if (elapsed < windowMs) {
+            return;
+        }
+        // Reuse the older window's array for the new one
+        int[] recycled = previous;
+        Arrays.fill(recycled, 0);
+        if (elapsed < 2 * windowMs) {
+            previous = current;
+            previousCount = currentCount;
+            windowStart += windowMs;
+        } else {
+            // Nothing recorded for a whole window, the current one is too old as well
+            Arrays.fill(current, 0);
+            previous = current;
+            previousCount = 0;
+            windowStart = now;
+        }
+        current = recycled;
+        currentCount = 0;
+    }
+
+    private static int bucketOf(long micros) {
+        if (micros < LINEAR_BUCKETS) {
+            return (int) micros;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(micros);
+        if (exponent > MAX_EXPONENT) {
+            return BUCKET_COUNT - 1;
+        }
+        int subBucket = (int) (micros >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return LINEAR_BUCKETS + (exponent - 4) * SUB_BUCKETS + subBucket;
+    }
+
+    /** Middle of the bucket's range in microseconds. */
+    private static double bucketMidpoint(int bucket) {
+        if (bucket < LINEAR_BUCKETS) {
+            return bucket;
+        }
+        int exponent = 4 + (bucket - LINEAR_BUCKETS) / SUB_BUCKETS;
+        int subBucket = (bucket - LINEAR_BUCKETS) % SUB_BUCKETS;
+        long width = 1L << (exponent - SUB_BUCKET_BITS);
+        long lower = (1L << exponent) + subBucket * width;
+        return lower + width / 2.0;
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright © 2025-2026 Dezz (https://github.com/DezzK)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package dezz.gnssshare.shared;
+
+import android.app.Notification;
+import android.app.NotificationManager;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.text.TextUtils;
+import android.util.Log;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Keeps a foreground service notification up to date without re-posting it on every change.
+ * <p>
+ * Callers only mark the notification dirty, from any thread. Updates are coalesced to at most one
+ * per interval and rendered on the main thread, and a notification whose title and text didn't
+ * change is not posted again, which saves a binder call to the system server.
+ */
+public class NotificationGovernor {
+    private static final String TAG = "NotificationGovernor";
+
+    public interface Renderer {
+        CharSequence getTitle();
+
+        CharSequence getText();
+
+        /** Builds the notification, called only when the title or the text changed. */
+        Notification build(CharSequence title, CharSequence text);
+    }
+
+    private final NotificationManager notificationManager;
+    private final int notificationId;
+    private final long minIntervalMs;
+    private final Renderer renderer;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final Runnable render = this::render;
+
+    private final AtomicBoolean scheduled = new AtomicBoolean(false);
+    private volatile boolean cancelled = false;
+    private volatile long lastRenderTime = 0;
+
+    // Owned by the main thread
+    private CharSequence postedTitle = null;
+    private CharSequence postedText = null;
+    private int skippedPosts = 0;
+
+    /**
+     * @param minIntervalMs minimum time between two renders, changes in between are coalesced
+     */
+    public NotificationGovernor(NotificationManager notificationManager, int notificationId,
+                                long minIntervalMs, Renderer renderer) {
+        this.notificationManager = notificationManager;
+        this.notificationId = notificationId;
+        this.minIntervalMs = minIntervalMs;
+        this.renderer = renderer;
+    }
+
+    /** Schedules a render, unless one is already pending. */
+    public void markDirty() {
+        if (cancelled || !scheduled.compareAndSet(false, true)) {
+            return;
+        }
+        long delay = lastRenderTime + minIntervalMs - SystemClock.elapsedRealtime();
+        handler.postDelayed(render, Math.max(0, delay));
+    }
+
+    /** Remembers a notification posted directly, e.g. by {@code startForeground()}. */
+    public void onPosted(CharSequence title, CharSequence text) {
+        postedTitle = title;
+        postedText = text;
+    }
+
+    /** Drops pending updates and removes the notification. */
+    public void cancel() {
+        cancelled = true;
+        handler.removeCallbacks(render);
+        notificationManager.cancel(notificationId);
+    }
+
+    private void render() {
+        scheduled.set(false);
+        if (cancelled) {
+            return;
+        }
+        lastRenderTime = SystemClock.elapsedRealtime();
+
+        CharSequence title = renderer.getTitle();
+        CharSequence text = renderer.getText();
+        if (TextUtils.equals(title, postedTitle) && TextUtils.equals(text, postedText)) {
+            skippedPosts++;
+            Log.v(TAG, "Notification unchanged, skipped posts: " + skippedPosts);
+            return;
+        }
+
+        notificationManager.notify(notificationId, renderer.build(title, text));
+        postedTitle = title;
+        postedText = text;
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright © 2025-2026 Dezz (https://github.com/DezzK)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package dezz.gnssshare.shared;
+
+import android.os.SystemClock;
+
+import java.util.Arrays;
+
+/**
+ * Measures how many events per second happen, e.g. fixes received or sent, over a sliding window
+ * of one-second buckets. Only complete buckets count, so the rate doesn't dip at the start of
+ * every second.
+ * <p>
+ * Thread-safe and allocation-free, marking an event costs a few arithmetic operations.
+ */
+public class RateMeter {
+    private static final long BUCKET_MS = 1000;
+
+    private final int[] buckets;
+    private long currentBucket = -1;
+    private long firstBucket = -1;
+    private long total = 0;
+
+    /**
+     * @param windowSeconds number of complete seconds the rate is averaged over
+     */
+    public RateMeter(int windowSeconds) {
+        buckets = new int[windowSeconds + 1];
+    }
+
+    public void mark() {
+        mark(SystemClock.elapsedRealtime());
+    }
+
+    public synchronized void mark(long now) {
+        advance(now);
+        buckets[(int) (currentBucket % buckets.length)]++;
+        total++;
+    }
+
+    /** Events per second over the window, 0 until at least one full second has passed. */
+    public float getRate() {
+        return getRate(SystemClock.elapsedRealtime());
+    }
+
+    public synchronized float getRate(long now) {
+        if (firstBucket < 0) {
+            return 0;
+        }
+        advance(now);
+        int complete = (int) Math.min(buckets.length - 1, currentBucket - firstBucket);
+        if (complete == 0) {
+            return 0;
+        }
+        long count = 0;
+        for (int i = 1; i <= complete; i++) {
+            count += buckets[(int) ((currentBucket - i) % buckets.length)];
+        }
+        return (float) count / complete;
+    }
+
+    /** Number of events since the meter was created or reset. */
+    public synchronized long getTotal() {
+        return total;
+    }
+
+    public synchronized void reset() {
+        Arrays.fill(buckets, 0);
+        currentBucket = -1;
+        firstBucket = -1;
+        total = 0;
+    }
+
+    private void advance(long now) {
+        long bucket = now / BUCKET_MS;
+        if (firstBucket < 0) {
+            firstBucket = bucket;
+            currentBucket = bucket;
+            return;
+        }
+        if (bucket <= currentBucket) {
+            return;
+        }
+        // Clear the buckets skipped since the last event, at most the whole ring
+        long clearFrom = Math.max(currentBucket + 1, bucket - buckets.length + 1);
+        for (long b = clearFrom; b <= bucket; b++) {
+            buckets[(int) (b % buckets.length)] = 0;
+        }
+        currentBucket = bucket;
+    }
+}